@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+
+/*
+ * A few mutable bitmaps kept after use, so that the next image of the same
+ * size is decoded into one of them (with BitmapFactory.Options.inBitmap)
+ * instead of allocating tens of megabytes of native memory again. Photos of
+ * a run usually all come from the same camera, so they have the same size.
+ *
+ * Bitmaps are matched by configuration and allocation size: BitmapFactory
+ * can reuse any bitmap that is large enough, but much larger ones are not
+ * worth holding on to. BitmapRegionDecoder doesn't reconfigure the bitmap it
+ * decodes into, so for regions its width and height must be large enough
+ * too. Evicted bitmaps are recycled right away.
+ */
+class BitmapPool {
+  private final int maxPooled;
+  private final Stats stats;
+  // Most recently released first
+  private final LinkedList<Bitmap> bitmaps = new LinkedList<>();
+
+  BitmapPool(int maxPooled, Stats stats) {
+    this.maxPooled = maxPooled;
+    this.stats = stats;
+  }
+
+  static int bytesPerPixel(Bitmap.Config config) {
+    return config == Bitmap.Config.RGB_565 ? 2 : 4;
+  }
+
+  /*
+   * Returns a bitmap that can hold an image of this size, or null if none is
+   * available: the caller then allocates a new one.
+   */
+  Bitmap acquire(int width, int height, Bitmap.Config config) {
+    return acquire(width, height, config, false);
+  }
+
+  /*
+   * Same as acquire(), for BitmapRegionDecoder: the bitmap is at least as
+   * wide and as high as the region.
+   */
+  Bitmap acquireForRegion(int width, int height, Bitmap.Config config) {
+    return acquire(width, height, config, true);
+  }
+
+  private synchronized Bitmap acquire(int width, int height,
+      Bitmap.Config config, boolean forRegion) {
+    long needed = (long) width * height * bytesPerPixel(config);
+    Bitmap best = null;
+    for (Bitmap bitmap : bitmaps) {
+      long size = bitmap.getAllocationByteCount();
+      if (bitmap.getConfig() == config && size >= needed &&
+          size <= 2 * needed &&
+          (!forRegion ||
+            (bitmap.getWidth() >= width && bitmap.getHeight() >= height)) &&
+          (best == null || size < best.getAllocationByteCount())) {
+        best = bitmap;
+      }
+    }
+    if (best == null) {
+      stats.increment("bitmap_allocations");
+      return null;
+    }
+    bitmaps.remove(best);
+    stats.increment("bitmap_reuses");
+    return best;
+  }
+
+  /*
+   * Same as acquire(), but always returns a bitmap of exactly this size.
+   */
+  Bitmap obtain(int width, int height, Bitmap.Config config) {
+    Bitmap bitmap = acquire(width, height, config);
+    if (bitmap == null) {
+      return Bitmap.createBitmap(width, height, config);
+    }
+    bitmap.reconfigure(width, height, config);
+    return bitmap;
+  }
+
+  /*
+   * The bitmap must not be used anymore by the caller.
+   */
+  synchronized void release(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled()) {
+      return;
+    }
+    if (!bitmap.isMutable() || maxPooled <= 0) {
+      bitmap.recycle();
+      return;
+    }
+    bitmaps.addFirst(bitmap);
+    while (bitmaps.size() > maxPooled) {
+      bitmaps.removeLast().recycle();
+      stats.increment("bitmap_evictions");
+    }
+  }
+
+  synchronized void clear() {
+    for (Iterator<Bitmap> it = bitmaps.iterator(); it.hasNext();) {
+      it.next().recycle();
+      it.remove();
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Compact set of strings that can answer "definitely not in the set" without
+ * any lock, with a 1% rate of false positives. About 1.2 bytes per entry.
+ *
+ * Adding is thread-safe, and can happen concurrently with lookups.
+ */
+class BloomFilter {
+  private static final int MAGIC = 0x424c4f4d; // "BLOM"
+  private static final int HASHES = 7;
+  private static final double BITS_PER_ENTRY = 9.6;
+
+  private final int capacity;
+  private final int bitCount;
+  private final AtomicLongArray bits;
+
+  BloomFilter(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63L,
+        Math.max(64L, (long) (this.capacity * BITS_PER_ENTRY)));
+    this.bits = new AtomicLongArray((bitCount + 63) / 64);
+  }
+
+  private BloomFilter(int capacity, int bitCount, long[] words) {
+    this.capacity = capacity;
+    this.bitCount = bitCount;
+    this.bits = new AtomicLongArray(words);
+  }
+
+  /*
+   * Number of entries this filter was sized for. Past it, the rate of false
+   * positives grows quickly.
+   */
+  int getCapacity() {
+    return capacity;
+  }
+
+  void add(String a, String b) {
+    long hash = hash(a, b);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < HASHES; i++) {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+      final long mask = 1L << (bit & 63);
+      bits.accumulateAndGet(bit >>> 6, mask, (x, y) -> x | y);
+    }
+  }
+
+  boolean mightContain(String a, String b) {
+    long hash = hash(a, b);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < HASHES; i++) {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+      if ((bits.get(bit >>> 6) & (1L << (bit & 63))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * 64-bit FNV-1a of both strings, separated by a tab.
+   */
+  private static long hash(String a, String b) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < a.length(); i++) {
+      hash = (hash ^ a.charAt(i)) * 0x100000001b3L;
+    }
+    hash = (hash ^ '\t') * 0x100000001b3L;
+    for (int i = 0; i < b.length(); i++) {
+      hash = (hash ^ b.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  void writeTo(DataOutputStream out, int entryCount) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(capacity);
+    out.writeInt(bitCount);
+    out.writeInt(entryCount);
+    out.writeInt(bits.length());
+    for (int i = 0; i < bits.length(); i++) {
+      out.writeLong(bits.get(i));
+    }
+  }
+
+  /*
+   * Returns null if the saved filter is unusable, or doesn't hold the
+   * expected number of entries.
+   */
+  static BloomFilter readFrom(DataInputStream in, int expectedEntryCount)
+      throws IOException {
+    if (in.readInt() != MAGIC) {
+      return null;
+    }
+    int capacity = in.readInt();
+    int bitCount = in.readInt();
+    int entryCount = in.readInt();
+    int wordCount = in.readInt();
+    if (entryCount != expectedEntryCount || capacity <= 0 || bitCount <= 0 ||
+        wordCount != (bitCount + 63) / 64) {
+      return null;
+    }
+    long[] words = new long[wordCount];
+    for (int i = 0; i < wordCount; i++) {
+      words[i] = in.readLong();
+    }
+    return new BloomFilter(capacity, bitCount, words);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*
+ * Growable byte buffers, reused from one file to the next. Once a buffer has
+ * grown to the size of a typical compressed image, following images are
+ * written to it without any new allocation.
+ */
+class BufferPool {
+  private static final int INITIAL_CAPACITY = 1 << 20;
+
+  private final int maxPooled;
+  private final Deque<Buffer> buffers = new ArrayDeque<>();
+
+  BufferPool(int maxPooled) {
+    this.maxPooled = maxPooled;
+  }
+
+  synchronized Buffer acquire() {
+    Buffer buffer = buffers.poll();
+    return buffer != null ? buffer : new Buffer();
+  }
+
+  /*
+   * The buffer must not be used anymore by the caller.
+   */
+  synchronized void release(Buffer buffer) {
+    buffer.reset();
+    if (buffers.size() < maxPooled) {
+      buffers.push(buffer);
+    }
+  }
+
+  /*
+   * Unlike ByteArrayOutputStream, gives access to its content without
+   * copying it. Use writeTo() to send it to another stream.
+   */
+  static class Buffer extends ByteArrayOutputStream {
+    Buffer() {
+      super(INITIAL_CAPACITY);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+  }
+}
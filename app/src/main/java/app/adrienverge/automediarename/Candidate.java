@@ -0,0 +1,64 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.nio.file.Path;
+
+/*
+ * A file found during traversal that matches a selection rule, and that the
+ * worker should process.
+ */
+class Candidate {
+  static final long UNKNOWN_SIZE = -1;
+
+  final String docId;
+  final String name;
+  final String newName;
+  final String mimeType;
+  final long lastModified;
+  // In bytes, or UNKNOWN_SIZE if the backend doesn't tell
+  final long size;
+  // Only set when the file was found on the filesystem, with full path access
+  final Path path;
+  private final Callback callback;
+
+  Candidate(String docId, String name, String newName, String mimeType,
+      long lastModified, long size, Path path, Callback callback) {
+    this.docId = docId;
+    this.name = name;
+    this.newName = newName;
+    this.mimeType = mimeType;
+    this.lastModified = lastModified;
+    this.size = size;
+    this.path = path;
+    this.callback = callback;
+  }
+
+  /*
+   * Must be called once the file was processed, successfully or not.
+   */
+  void done(boolean success) {
+    if (callback != null) {
+      callback.done(this, success);
+    }
+  }
+
+  interface Callback {
+    void done(Candidate candidate, boolean success);
+  }
+}
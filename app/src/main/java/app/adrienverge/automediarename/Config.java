@@ -18,14 +18,19 @@
 package app.adrienverge.automediarename;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.json.JSONArray;
@@ -33,14 +38,25 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
+import android.util.AtomicFile;
 import android.util.Log;
 
 class Config {
   private static final String TAG = "automediarename";
   private static final String CONFIG_FILE = "config.json";
+  // Saves requested within this delay are written at once
+  private static final long SAVE_DELAY_IN_MILLIS = 2000;
   private static Config instance;
   private Context context;
+  private AtomicFile file;
+  private ScheduledExecutorService saveExecutor;
+  // Held while writing the file, before the lock on this object
+  private final Object fileLock = new Object();
+  private boolean savePending = false;
+  // Only read or modified while holding the lock on this object
   private JSONObject json;
+  // Parsed from json, replaced as a whole on each change
+  private volatile Snapshot snapshot;
 
   static Config getInstance(Context context) {
     synchronized (Config.class) {
@@ -53,6 +69,13 @@ class Config {
 
   private Config(Context context) {
     this.context = context;
+    this.file = new AtomicFile(new File(context.getFilesDir(), CONFIG_FILE));
+    this.saveExecutor = Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+          Thread thread = new Thread(runnable, "Config-save");
+          thread.setDaemon(true);
+          return thread;
+        });
 
     setDefaultConfig();
     load();
@@ -64,9 +87,19 @@ class Config {
       if (!json.has("jpeg_compression")) {
         json.put("jpeg_compression", new JSONObject());
       }
+      if (!json.has("traversal")) {
+        json.put("traversal", new JSONObject());
+      }
+      if (!json.has("pipeline")) {
+        json.put("pipeline", new JSONObject());
+      }
+      if (!json.has("event_work")) {
+        json.put("event_work", new JSONObject());
+      }
 
       Log.d(TAG, "Loaded config: " + json.toString(2));
     } catch (JSONException e) {}
+    snapshot = new Snapshot(json, null, 0);
   }
 
   private void setDefaultConfig() {
@@ -78,7 +111,8 @@ class Config {
 
   private void load() {
     try {
-      FileInputStream fis = context.openFileInput(CONFIG_FILE);
+      // Restores the previous version if a write was interrupted
+      FileInputStream fis = file.openRead();
       InputStreamReader inputStreamReader = new InputStreamReader(fis);
       BufferedReader reader = new BufferedReader(inputStreamReader);
       StringBuilder stringBuilder = new StringBuilder();
@@ -98,139 +132,455 @@ class Config {
     }
   }
 
-  void save() {
-    try {
-      FileOutputStream out = context.openFileOutput(CONFIG_FILE, Context.MODE_PRIVATE);
-      out.write(json.toString().getBytes());
-      out.close();
-    } catch (IOException e) {
-      Log.e(TAG, "IOException: " + e.toString());
-      e.printStackTrace();
+  /*
+   * Schedules a write of the configuration. Saves requested in a short time
+   * are coalesced into one write, to spare flash storage.
+   */
+  synchronized void save() {
+    if (savePending) {
+      return;
     }
+    savePending = true;
+    saveExecutor.schedule(this::flush, SAVE_DELAY_IN_MILLIS,
+        TimeUnit.MILLISECONDS);
   }
 
-  String getMediaDirectory() {
-    try {
-      return json.getString("media_directory");
-    } catch (JSONException e) {
-      return null;
+  /*
+   * Writes pending changes now, e.g. before the process may be killed.
+   *
+   * The file is replaced atomically: the new content is written to a
+   * temporary file, synced to disk, then renamed over the old one. A crash at
+   * any point leaves either the old or the new configuration.
+   */
+  void flush() {
+    synchronized (fileLock) {
+      byte[] data;
+      synchronized (this) {
+        if (!savePending) {
+          return;
+        }
+        savePending = false;
+        data = json.toString().getBytes();
+      }
+      FileOutputStream out = null;
+      try {
+        out = file.startWrite();
+        out.write(data);
+        file.finishWrite(out);
+      } catch (IOException e) {
+        Log.e(TAG, "IOException: " + e.toString());
+        e.printStackTrace();
+        if (out != null) {
+          file.failWrite(out);
+        }
+      }
     }
   }
-  void setMediaDirectory(String value) {
+
+  String getMediaDirectory() {
+    return snapshot.mediaDirectory;
+  }
+  synchronized void setMediaDirectory(String value) {
     try {
       json.put("media_directory", value);
     } catch (JSONException e) {}
+    update(false);
   }
 
   long getMinimumTimestamp() {
-    try {
-      return json.getLong("minimum_timestamp");
-    } catch (JSONException e) {
-      return 0;
-    }
+    return snapshot.minimumTimestamp;
   }
-  void setMinimumTimestamp(long value) {
+  synchronized void setMinimumTimestamp(long value) {
     try {
       json.put("minimum_timestamp", value);
     } catch (JSONException e) {}
+    update(false);
   }
 
-  List<Selection> getSelections() {
-    List<Selection> selections = new LinkedList<>();
-    JSONArray array;
+  /*
+   * Set when directories high-water marks must be forgotten, e.g. because
+   * the minimum timestamp moved back. The worker clears them and the flag
+   * when it starts.
+   */
+  boolean getClearWatermarks() {
+    return snapshot.clearWatermarks;
+  }
+  synchronized void setClearWatermarks(boolean value) {
     try {
-      array = json.getJSONArray("selections");
-    } catch (JSONException e) {
-      return new LinkedList<Selection>(Arrays.asList(
-        new Selection("^20\\d\\d[01]\\d[0123]\\d_\\d{6}.*\\.jpg", "IMG_"),
-        new Selection("^20\\d\\d[01]\\d[0123]\\d_\\d{6}.*\\.mp4", "VID_")));
-    }
-    for (int i = 0; i < array.length(); i++) {
-      try {
-        JSONObject obj = array.getJSONObject(i);
-        selections.add(
-          new Selection(obj.getString("pattern"), obj.getString("prefix")));
-      } catch (JSONException e) {
-        continue;
-      }
-    }
-    return selections;
+      json.put("clear_watermarks", value);
+    } catch (JSONException e) {}
+    update(false);
   }
-  void setSelections(List<Selection> selections) {
+
+  /*
+   * Returns the selection rules. They are compiled once, and the returned
+   * list is shared and can't be modified.
+   */
+  List<Selection> getSelections() {
+    return snapshot.selections;
+  }
+  synchronized void setSelections(List<Selection> selections) {
     try {
       JSONArray array = new JSONArray();
       for (Selection selection : selections) {
         JSONObject obj = new JSONObject();
         obj.put("pattern", selection.pattern);
         obj.put("prefix", selection.prefix);
+        if (selection.mimeType != null) {
+          obj.put("mime_type", selection.mimeType);
+        }
         array.put(obj);
       }
       json.put("selections", array);
     } catch (JSONException e) {}
+    update(true);
+  }
+
+  /*
+   * Incremented each time the selection rules change, so that long-running
+   * tasks can detect it.
+   */
+  int getSelectionsVersion() {
+    return snapshot.selectionsVersion;
   }
 
   int getPeriodicWorkPeriod() {
-    try {
-      return json.getJSONObject("periodic_work").getInt("period");
-    } catch (JSONException e) {
-      return 3600;
-    }
+    return snapshot.periodicWorkPeriod;
   }
-  void setPeriodicWorkPeriod(int value) {
+  synchronized void setPeriodicWorkPeriod(int value) {
     try {
       json.getJSONObject("periodic_work").put("period", value);
     } catch (JSONException e) {}
+    update(false);
   }
 
-  int getJpegCompressionQuality() {
+  /*
+   * If true, the worker also runs a few minutes after new media appear.
+   */
+  boolean getEventWorkEnabled() {
+    return snapshot.eventWorkEnabled;
+  }
+  synchronized void setEventWorkEnabled(boolean value) {
     try {
-      return json.getJSONObject("jpeg_compression").getInt("quality");
-    } catch (JSONException e) {
-      return 80;
-    }
+      json.getJSONObject("event_work").put("enabled", value);
+    } catch (JSONException e) {}
+    update(false);
+  }
+
+  int getJpegCompressionQuality() {
+    return snapshot.jpegCompressionQuality;
   }
 
   double getJpegCompressionOverwriteRatio() {
-    try {
-      return json.getJSONObject("jpeg_compression").getDouble("overwrite_ratio");
-    } catch (JSONException e) {
-      return 0.7;
-    }
+    return snapshot.jpegCompressionOverwriteRatio;
   }
 
   boolean getJpegCompressionKeepBackup() {
-    try {
-      return json.getJSONObject("jpeg_compression").getBoolean("keep_backup");
-    } catch (JSONException e) {
-      return true;
-    }
+    return snapshot.jpegCompressionKeepBackup;
   }
-  void setJpegCompressionKeepBackup(boolean value) {
+  synchronized void setJpegCompressionKeepBackup(boolean value) {
     try {
       json.getJSONObject("jpeg_compression").put("keep_backup", value);
     } catch (JSONException e) {}
+    update(false);
   }
 
   boolean getJpegCompressionCopyTimestamps() {
+    return snapshot.jpegCompressionCopyTimestamps;
+  }
+  synchronized void setJpegCompressionCopyTimestamps(boolean value) {
     try {
-      return json.getJSONObject("jpeg_compression").getBoolean("copy_timestamps");
+      json.getJSONObject("jpeg_compression").put("copy_timestamps", value);
+    } catch (JSONException e) {}
+    update(false);
+  }
+
+  /*
+   * In pixels. If positive, larger images are scaled down when recompressed,
+   * so that their largest side is this long. 0 keeps the original size.
+   */
+  int getJpegCompressionMaxDimension() {
+    return snapshot.jpegCompressionMaxDimension;
+  }
+
+  /*
+   * If true, images whose JPEG header and file size show they are unlikely
+   * to get small enough are not recompressed at all (see QualityEstimator).
+   * Skipped images are still renamed, and recorded as such in the index.
+   */
+  boolean getJpegCompressionPredictiveSkip() {
+    return snapshot.jpegCompressionPredictiveSkip;
+  }
+
+  /*
+   * How to find files: "documents" to always go through the DocumentsProvider,
+   * "filesystem" to walk the filesystem directly when the app has full path
+   * access, "mediastore" to query MediaStore when it knows the media
+   * directory, or "auto" to pick the first one that works in this order.
+   * MediaStore needs the storage permission, requested when the media
+   * directory is chosen: with "auto", it is only used when the app doesn't
+   * have all files access.
+   */
+  String getTraversalBackend() {
+    return snapshot.traversalBackend;
+  }
+
+  /*
+   * In seconds. Files modified up to this long before the high-water mark of
+   * their directory are looked at again, in case they showed up late.
+   */
+  int getWatermarkOverlap() {
+    return snapshot.watermarkOverlap;
+  }
+
+  /*
+   * Number of directories listed at once during traversal.
+   */
+  int getTraversalListingThreads() {
+    return snapshot.traversalListingThreads;
+  }
+
+  /*
+   * If positive, directories are listed by pages of this many documents, for
+   * providers that support it. This keeps each cursor window small on huge
+   * directories.
+   */
+  int getTraversalPageSize() {
+    return snapshot.traversalPageSize;
+  }
+
+  /*
+   * Number of files found during traversal that can wait to be processed.
+   */
+  int getTraversalQueueDepth() {
+    return snapshot.traversalQueueDepth;
+  }
+
+  /*
+   * Number of threads of a processing pipeline stage ("read", "compress",
+   * "write" or "rename").
+   */
+  int getPipelineThreads(String stage) {
+    Snapshot s = snapshot;
+    switch (stage) {
+      case "read": return s.pipelineReadThreads;
+      case "compress": return s.pipelineCompressThreads;
+      case "write": return s.pipelineWriteThreads;
+      case "rename": return s.pipelineRenameThreads;
+      default: return 1;
+    }
+  }
+
+  /*
+   * Number of files that can wait between two pipeline stages. Keep it low:
+   * waiting files can hold a whole image in memory.
+   */
+  int getPipelineQueueDepth() {
+    return snapshot.pipelineQueueDepth;
+  }
+
+  /*
+   * Number of renames of a directory sent to the provider at once (on
+   * Android 11+). 1 disables batching.
+   */
+  int getRenameBatchSize() {
+    return snapshot.renameBatchSize;
+  }
+
+  /*
+   * In seconds. Once a run has been going for this long, it stops taking new
+   * files and asks to be retried, so that big backlogs are processed over
+   * several runs instead of being killed by the system after 10 minutes.
+   * 0 means no limit.
+   */
+  int getWorkerTimeBudget() {
+    return snapshot.workerTimeBudget;
+  }
+
+  /*
+   * Same as getWorkerTimeBudget(), as a number of files to process per run.
+   */
+  int getWorkerFileBudget() {
+    return snapshot.workerFileBudget;
+  }
+
+  /*
+   * Must be called after each change of json, with the lock held.
+   */
+  private void update(boolean selectionsChanged) {
+    Snapshot previous = snapshot;
+    snapshot = selectionsChanged ?
+        new Snapshot(json, null, previous.selectionsVersion + 1) :
+        new Snapshot(json, previous.selections, previous.selectionsVersion);
+  }
+
+  /*
+   * Immutable, typed copy of the configuration. Getters read it without any
+   * lock or JSON lookup, so they are cheap enough for hot paths.
+   */
+  private class Snapshot {
+    final String mediaDirectory;
+    final long minimumTimestamp;
+    final boolean clearWatermarks;
+    final List<Selection> selections;
+    final int selectionsVersion;
+    final int periodicWorkPeriod;
+    final boolean eventWorkEnabled;
+    final int jpegCompressionQuality;
+    final double jpegCompressionOverwriteRatio;
+    final boolean jpegCompressionKeepBackup;
+    final boolean jpegCompressionCopyTimestamps;
+    final int jpegCompressionMaxDimension;
+    final boolean jpegCompressionPredictiveSkip;
+    final String traversalBackend;
+    final int watermarkOverlap;
+    final int traversalListingThreads;
+    final int traversalPageSize;
+    final int traversalQueueDepth;
+    final int pipelineReadThreads;
+    final int pipelineCompressThreads;
+    final int pipelineWriteThreads;
+    final int pipelineRenameThreads;
+    final int pipelineQueueDepth;
+    final int renameBatchSize;
+    final int workerTimeBudget;
+    final int workerFileBudget;
+
+    /*
+     * Selections are compiled again only if null.
+     */
+    Snapshot(JSONObject json, List<Selection> selections,
+        int selectionsVersion) {
+      String mediaDirectory;
+      try {
+        mediaDirectory = json.getString("media_directory");
+      } catch (JSONException e) {
+        mediaDirectory = null;
+      }
+      this.mediaDirectory = mediaDirectory;
+      long minimumTimestamp;
+      try {
+        minimumTimestamp = json.getLong("minimum_timestamp");
+      } catch (JSONException e) {
+        minimumTimestamp = 0;
+      }
+      this.minimumTimestamp = minimumTimestamp;
+      boolean clearWatermarks;
+      try {
+        clearWatermarks = json.getBoolean("clear_watermarks");
+      } catch (JSONException e) {
+        clearWatermarks = false;
+      }
+      this.clearWatermarks = clearWatermarks;
+      this.selections = selections != null ? selections :
+          Collections.unmodifiableList(parseSelections(json));
+      this.selectionsVersion = selectionsVersion;
+
+      periodicWorkPeriod = getInt(json, "periodic_work", "period", 3600);
+      eventWorkEnabled = getBoolean(json, "event_work", "enabled", false);
+
+      jpegCompressionQuality =
+          getInt(json, "jpeg_compression", "quality", 80);
+      double overwriteRatio;
+      try {
+        overwriteRatio = json.getJSONObject("jpeg_compression")
+            .getDouble("overwrite_ratio");
+      } catch (JSONException e) {
+        overwriteRatio = 0.7;
+      }
+      jpegCompressionOverwriteRatio = overwriteRatio;
+      jpegCompressionKeepBackup =
+          getBoolean(json, "jpeg_compression", "keep_backup", true);
+      jpegCompressionCopyTimestamps =
+          getBoolean(json, "jpeg_compression", "copy_timestamps", false);
+      jpegCompressionMaxDimension =
+          getInt(json, "jpeg_compression", "max_dimension", 0);
+      jpegCompressionPredictiveSkip =
+          getBoolean(json, "jpeg_compression", "predictive_skip", true);
+
+      String backend;
+      try {
+        backend = json.getJSONObject("traversal").getString("backend");
+      } catch (JSONException e) {
+        backend = "auto";
+      }
+      traversalBackend = backend;
+      watermarkOverlap = getInt(json, "traversal", "watermark_overlap", 3600);
+      traversalListingThreads =
+          getInt(json, "traversal", "listing_threads", 4);
+      traversalPageSize = getInt(json, "traversal", "page_size", 0);
+      traversalQueueDepth = getInt(json, "traversal", "queue_depth", 32);
+
+      pipelineReadThreads = getInt(json, "pipeline", "read_threads", 1);
+      pipelineCompressThreads =
+          getInt(json, "pipeline", "compress_threads", 1);
+      pipelineWriteThreads = getInt(json, "pipeline", "write_threads", 1);
+      pipelineRenameThreads = getInt(json, "pipeline", "rename_threads", 1);
+      pipelineQueueDepth = getInt(json, "pipeline", "queue_depth", 2);
+      renameBatchSize = getInt(json, "pipeline", "rename_batch_size", 16);
+
+      workerTimeBudget = getInt(json, "worker", "time_budget", 480);
+      workerFileBudget = getInt(json, "worker", "file_budget", 0);
+    }
+  }
+
+  private static int getInt(JSONObject json, String section, String key,
+      int defaultValue) {
+    try {
+      return json.getJSONObject(section).getInt(key);
     } catch (JSONException e) {
-      return false;
+      return defaultValue;
     }
   }
-  void setJpegCompressionCopyTimestamps(boolean value) {
+
+  private static boolean getBoolean(JSONObject json, String section,
+      String key, boolean defaultValue) {
     try {
-      json.getJSONObject("jpeg_compression").put("copy_timestamps", value);
-    } catch (JSONException e) {}
+      return json.getJSONObject(section).getBoolean(key);
+    } catch (JSONException e) {
+      return defaultValue;
+    }
+  }
+
+  private List<Selection> parseSelections(JSONObject json) {
+    JSONArray array;
+    try {
+      array = json.getJSONArray("selections");
+    } catch (JSONException e) {
+      return Arrays.asList(
+        new Selection("^20\\d\\d[01]\\d[0123]\\d_\\d{6}.*\\.jpg", "IMG_"),
+        new Selection("^20\\d\\d[01]\\d[0123]\\d_\\d{6}.*\\.mp4", "VID_"));
+    }
+    List<Selection> selections = new ArrayList<>(array.length());
+    for (int i = 0; i < array.length(); i++) {
+      try {
+        JSONObject obj = array.getJSONObject(i);
+        String mimeType = obj.has("mime_type") ?
+            obj.getString("mime_type") : null;
+        selections.add(new Selection(obj.getString("pattern"),
+              obj.getString("prefix"), mimeType));
+      } catch (JSONException e) {
+        continue;
+      }
+    }
+    return selections;
   }
 
-  class Selection {
-    Pattern pattern;
-    String prefix;
+  static class Selection {
+    final Pattern pattern;
+    final String prefix;
+    // If set, only files of this MIME type match, e.g. "image/jpeg" or
+    // "image/*"
+    final String mimeType;
 
     Selection(String pattern, String prefix) {
+      this(pattern, prefix, null);
+    }
+
+    Selection(String pattern, String prefix, String mimeType) {
       this.pattern = Pattern.compile(pattern);
       this.prefix = prefix;
+      this.mimeType = mimeType;
     }
   }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+
+/*
+ * Runs the worker when new images or videos appear, instead of waiting for
+ * the next periodic run.
+ *
+ * The system observes MediaStore on our behalf (through a WorkManager content
+ * URI trigger), even when the app is not running. Changes are debounced: the
+ * worker starts only once nothing changed for longer than the quiet period
+ * during which recent files are left untouched, and then lists only the
+ * directories that contain the changed files.
+ *
+ * A trigger fires only once, so each run of the chain (they are tagged with
+ * WORK_NAME) schedules the next one, even if it failed. A run that couldn't
+ * process all files schedules a continuation that starts right away, rather
+ * than returning Result.retry(): a retried run would wait for the trigger to
+ * fire again.
+ */
+class ContentTrigger {
+  private static final String TAG = "automediarename";
+  static final String WORK_NAME = "content-trigger-work";
+  // Slightly more than the worker's quiet period, so that changed files are
+  // old enough to be processed when it runs.
+  private static final long UPDATE_DELAY_IN_MINUTES = Worker.QUIET_PERIOD_IN_MINUTES + 1;
+  // Don't wait forever if files keep changing
+  private static final long MAX_DELAY_IN_MINUTES = 60;
+  private static final String PRIMARY_VOLUME_ID = "primary";
+
+  /*
+   * Makes sure a triggered run is enqueued. If one is already running, the
+   * next one is enqueued after it. If continueNow is true, the next run
+   * doesn't wait for media to change.
+   */
+  static void schedule(Context context, boolean afterCurrent,
+      boolean continueNow) {
+    OneTimeWorkRequest.Builder builder =
+      new OneTimeWorkRequest.Builder(Worker.class)
+      .addTag(WORK_NAME);
+    if (!continueNow) {
+      builder.setConstraints(
+          new Constraints.Builder()
+          .addContentUriTrigger(
+              MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true)
+          .addContentUriTrigger(
+              MediaStore.Video.Media.EXTERNAL_CONTENT_URI, true)
+          .setTriggerContentUpdateDelay(UPDATE_DELAY_IN_MINUTES,
+              TimeUnit.MINUTES)
+          .setTriggerContentMaxDelay(MAX_DELAY_IN_MINUTES, TimeUnit.MINUTES)
+          .build());
+    }
+    OneTimeWorkRequest request = builder.build();
+    WorkManager.getInstance(context).enqueueUniqueWork(
+        WORK_NAME,
+        afterCurrent ? ExistingWorkPolicy.APPEND_OR_REPLACE
+                     : ExistingWorkPolicy.KEEP,
+        request);
+  }
+
+  static void cancel(Context context) {
+    WorkManager.getInstance(context).cancelUniqueWork(WORK_NAME);
+  }
+
+  /*
+   * Returns the document IDs of directories under rootDocId that contain the
+   * changed files, or null if they can't be known and the whole tree must be
+   * walked (e.g. because too many files changed).
+   */
+  static Set<String> getDirtyDirectories(Context context,
+      List<Uri> changedUris, String rootDocId) {
+    if (changedUris == null || changedUris.isEmpty()) {
+      return null;
+    }
+    // Otherwise, rows of other apps' files can't be told from deleted ones
+    boolean canReadAllMedia = MediaStoreWalker.canReadAllMedia(context);
+    Set<String> directories = new HashSet<>();
+    final String[] projection = {
+        MediaStore.MediaColumns.VOLUME_NAME,
+        MediaStore.MediaColumns.RELATIVE_PATH};
+    for (Uri uri : changedUris) {
+      if (!isItemUri(uri)) {
+        // A whole collection changed
+        return null;
+      }
+      try (Cursor c = context.getContentResolver().query(
+            uri, projection, null, null, null)) {
+        if (c == null || !c.moveToFirst()) {
+          if (!canReadAllMedia) {
+            return null;
+          }
+          // Deleted files don't need to be processed
+          continue;
+        }
+        String volumeName = c.getString(0);
+        String relativePath = c.getString(1);
+        if (volumeName == null || relativePath == null) {
+          return null;
+        }
+        if (relativePath.endsWith("/")) {
+          relativePath = relativePath.substring(0, relativePath.length() - 1);
+        }
+        String docId = getVolumeId(volumeName) + ":" + relativePath;
+        if (isUnder(docId, rootDocId)) {
+          directories.add(docId);
+        }
+      } catch (Exception e) {
+        Log.e(TAG, "Cannot query " + uri + ": " + e.toString());
+        return null;
+      }
+    }
+    return directories;
+  }
+
+  private static boolean isItemUri(Uri uri) {
+    String id = uri.getLastPathSegment();
+    if (id == null || id.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < id.length(); i++) {
+      if (!Character.isDigit(id.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String getVolumeId(String volumeName) {
+    if (MediaStore.VOLUME_EXTERNAL_PRIMARY.equals(volumeName)) {
+      return PRIMARY_VOLUME_ID;
+    }
+    // Secondary volumes are named after their lowercase UUID
+    return volumeName.toUpperCase(Locale.ROOT);
+  }
+
+  private static boolean isUnder(String docId, String rootDocId) {
+    if (docId.equals(rootDocId)) {
+      return true;
+    } else if (rootDocId.endsWith(":")) {
+      return docId.startsWith(rootDocId);
+    } else {
+      return docId.startsWith(rootDocId + "/");
+    }
+  }
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+/*
+ * On-disk index of documents already seen by the worker, keyed by document
+ * ID. For each document we remember its name, MIME type, last modification
+ * date and what we decided to do with it, so that next runs can skip it as
+ * long as it doesn't change.
+ *
+ * It also keeps a fingerprint of each directory fully processed during last
+ * scan, so that unchanged subtrees can be skipped without listing them, and
+ * the high-water mark of each directory (see Walker).
+ *
+ * A Bloom filter of known (document ID, name) pairs tells, without taking
+ * any lock, that a document was never seen: this is the most common answer
+ * for new files. It is saved next to the index, and rebuilt from it when
+ * missing or out of date.
+ *
+ * Files are simple tab-separated text files (one entry per line), which are
+ * much faster to load than JSON for tens of thousands of entries. Like the
+ * configuration, each one is replaced atomically when saved.
+ *
+ * The index is only saved at the end of a run. Changes made in between are
+ * appended to the journal, and replayed when loading, so that they are not
+ * lost if the run is stopped.
+ */
+class DocumentIndex {
+  private static final String TAG = "automediarename";
+  private static final String FILE = "index.txt";
+  private static final String DIRECTORIES_FILE = "directories.txt";
+  private static final String WATERMARKS_FILE = "watermarks.txt";
+  private static final String KNOWN_FILE = "known.bloom";
+  private static final int KNOWN_MIN_CAPACITY = 16384;
+  private static final int VERSION = 1;
+  // Journal records
+  private static final String RECORD_RULES = "rules";
+  private static final String RECORD_PUT = "put";
+  private static final String RECORD_REMOVE = "remove";
+  private static final String RECORD_PUT_DIRECTORY = "putdir";
+  private static final String RECORD_REMOVE_DIRECTORY = "rmdir";
+  private static final String RECORD_WATERMARK = "watermark";
+  private static final String RECORD_CLEAR_WATERMARKS = "clearwatermarks";
+
+  // No selection matched, the document was left untouched.
+  static final String DECISION_NONE = "none";
+  // The document was renamed.
+  static final String DECISION_RENAMED = "renamed";
+  // The document was recompressed and renamed.
+  static final String DECISION_COMPRESSED = "compressed";
+  // The document was renamed, but not recompressed because it was not
+  // expected to get small enough (see QualityEstimator).
+  static final String DECISION_ESTIMATED = "estimated";
+
+  private static DocumentIndex instance;
+  private Context context;
+  private Journal journal;
+  // Set while replaying the journal, so that records are not appended again
+  private boolean replaying = false;
+  private String rulesKey = "";
+  private Map<String, Entry> documents = new HashMap<>();
+  private Map<String, Fingerprint> directories = new HashMap<>();
+  private Map<String, Long> watermarks = new HashMap<>();
+  private volatile BloomFilter known;
+  // Entries added to the Bloom filter since it was built
+  private int knownAdded;
+  private boolean dirty = false;
+
+  static DocumentIndex getInstance(Context context) {
+    synchronized (DocumentIndex.class) {
+      if (instance == null) {
+        instance = new DocumentIndex(context.getApplicationContext());
+      }
+    }
+    return instance;
+  }
+
+  private DocumentIndex(Context context) {
+    this.context = context;
+    this.journal = Journal.getInstance(context);
+
+    load();
+    loadKnown();
+    replay(journal.takeIndexRecords());
+  }
+
+  /*
+   * Applies changes made by a run that was stopped before saving the index.
+   */
+  private synchronized void replay(List<String[]> records) {
+    if (records.isEmpty()) {
+      return;
+    }
+    Log.i(TAG, "Replaying " + records.size() + " journal records");
+    replaying = true;
+    try {
+      for (String[] r : records) {
+        try {
+          if (RECORD_RULES.equals(r[0]) && r.length == 2) {
+            validate(r[1]);
+          } else if (RECORD_PUT.equals(r[0]) && r.length == 6) {
+            put(r[1], r[5], r[4], Long.parseLong(r[2]), r[3]);
+          } else if (RECORD_REMOVE.equals(r[0]) && r.length == 2) {
+            remove(r[1]);
+          } else if (RECORD_PUT_DIRECTORY.equals(r[0]) && r.length >= 7) {
+            putDirectory(r[1], parseFingerprint(r, 2));
+          } else if (RECORD_REMOVE_DIRECTORY.equals(r[0]) && r.length == 2) {
+            removeDirectory(r[1]);
+          } else if (RECORD_WATERMARK.equals(r[0]) && r.length == 3) {
+            putWatermark(r[1], Long.parseLong(r[2]));
+          } else if (RECORD_CLEAR_WATERMARKS.equals(r[0]) && r.length == 1) {
+            clearWatermarks();
+          }
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+    } finally {
+      replaying = false;
+    }
+    dirty = true;
+  }
+
+  private void journal(boolean durable, String... fields) {
+    if (!replaying) {
+      journal.append(durable, fields);
+    }
+  }
+
+  /*
+   * Decisions depend on the selection rules: if they changed since the index
+   * was built, previous decisions are worthless and we start from scratch.
+   */
+  synchronized void validate(String rulesKey) {
+    if (!this.rulesKey.equals(rulesKey)) {
+      Log.i(TAG, "Selection rules changed, clearing document index");
+      this.rulesKey = rulesKey;
+      journal(true, RECORD_RULES, rulesKey);
+      documents.clear();
+      directories.clear();
+      watermarks.clear();
+      rebuildKnown();
+      dirty = true;
+    }
+  }
+
+  /*
+   * Returns false if the document was never seen with this name. Returns true
+   * if it probably was: use isUnchanged() to be sure.
+   */
+  boolean mightBeKnown(String docId, String name) {
+    return known.mightContain(docId, name);
+  }
+
+  synchronized Entry get(String docId) {
+    return documents.get(docId);
+  }
+
+  /*
+   * Returns true if the document is known and didn't change since last time.
+   */
+  synchronized boolean isUnchanged(String docId, String name,
+      long lastModified) {
+    Entry entry = documents.get(docId);
+    return entry != null && entry.lastModified == lastModified &&
+        entry.name.equals(name);
+  }
+
+  synchronized void put(String docId, String name, String mimeType,
+      long lastModified, String decision) {
+    Entry previous = documents.put(docId, new Entry(name,
+          mimeType == null ? "" : mimeType, lastModified, decision));
+    if (previous == null || !previous.name.equals(name)) {
+      known.add(docId, name);
+      if (++knownAdded > known.getCapacity()) {
+        rebuildKnown();
+      }
+    }
+    journal(false, RECORD_PUT, docId, Long.toString(lastModified), decision,
+        mimeType == null ? "" : mimeType, name);
+    dirty = true;
+  }
+
+  synchronized void remove(String docId) {
+    if (documents.remove(docId) != null) {
+      journal(false, RECORD_REMOVE, docId);
+      dirty = true;
+    }
+  }
+
+  synchronized int size() {
+    return documents.size();
+  }
+
+  synchronized Fingerprint getDirectory(String docId) {
+    return directories.get(docId);
+  }
+
+  synchronized void putDirectory(String docId, Fingerprint fingerprint) {
+    directories.put(docId, fingerprint);
+    String[] fields = formatFingerprint(fingerprint);
+    String[] record = new String[fields.length + 2];
+    record[0] = RECORD_PUT_DIRECTORY;
+    record[1] = docId;
+    System.arraycopy(fields, 0, record, 2, fields.length);
+    journal(false, record);
+    dirty = true;
+  }
+
+  synchronized void removeDirectory(String docId) {
+    if (directories.remove(docId) != null) {
+      journal(false, RECORD_REMOVE_DIRECTORY, docId);
+      dirty = true;
+    }
+  }
+
+  /*
+   * Returns the most recent modification date up to which all files of the
+   * directory were processed, or 0 if unknown.
+   */
+  synchronized long getWatermark(String docId) {
+    Long watermark = watermarks.get(docId);
+    return watermark == null ? 0 : watermark;
+  }
+
+  /*
+   * Forgets all high-water marks, e.g. when the user wants older files to be
+   * looked at again.
+   */
+  synchronized void clearWatermarks() {
+    watermarks.clear();
+    journal(true, RECORD_CLEAR_WATERMARKS);
+    dirty = true;
+  }
+
+  synchronized void putWatermark(String docId, long watermark) {
+    Long previous = watermarks.put(docId, watermark);
+    if (previous == null || previous != watermark) {
+      // A directory is done: make it durable, so that it is not walked again
+      // if the run is stopped.
+      journal(true, RECORD_WATERMARK, docId, Long.toString(watermark));
+      dirty = true;
+    }
+  }
+
+  private void load() {
+    try {
+      InputStreamReader inputStreamReader =
+          new InputStreamReader(getFile(FILE).openRead());
+      BufferedReader reader = new BufferedReader(inputStreamReader);
+      String line = reader.readLine();
+      String[] header = line == null ? new String[0] : line.split("\t", 2);
+      if (header.length == 2 && header[0].equals(Integer.toString(VERSION))) {
+        rulesKey = header[1];
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t", 5);
+          if (fields.length != 5) {
+            continue;
+          }
+          try {
+            documents.put(fields[0], new Entry(fields[4], fields[3],
+                  Long.parseLong(fields[1]), fields[2]));
+          } catch (NumberFormatException e) {
+            continue;
+          }
+        }
+      }
+      inputStreamReader.close();
+    } catch (FileNotFoundException e) {
+      // It's not a problem, the index will be built during next run
+    } catch (IOException e) {
+      Log.e(TAG, "Read from " + FILE + " failed: " + e.toString());
+      documents.clear();
+    }
+
+    // Other files are loaded even without the index: they are saved one
+    // after the other, so any of them can be missing.
+
+    try {
+      InputStreamReader inputStreamReader =
+          new InputStreamReader(getFile(DIRECTORIES_FILE).openRead());
+      BufferedReader reader = new BufferedReader(inputStreamReader);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields.length < 6) {
+          continue;
+        }
+        try {
+          directories.put(fields[0], parseFingerprint(fields, 1));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+      inputStreamReader.close();
+    } catch (FileNotFoundException e) {
+      // It's not a problem
+    } catch (IOException e) {
+      Log.e(TAG, "Read from " + DIRECTORIES_FILE + " failed: " + e.toString());
+      directories.clear();
+    }
+
+    try {
+      InputStreamReader inputStreamReader =
+          new InputStreamReader(getFile(WATERMARKS_FILE).openRead());
+      BufferedReader reader = new BufferedReader(inputStreamReader);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields.length != 2) {
+          continue;
+        }
+        try {
+          watermarks.put(fields[0], Long.parseLong(fields[1]));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+      inputStreamReader.close();
+    } catch (FileNotFoundException e) {
+      // It's not a problem
+    } catch (IOException e) {
+      Log.e(TAG, "Read from " + WATERMARKS_FILE + " failed: " + e.toString());
+      watermarks.clear();
+    }
+  }
+
+  /*
+   * Makes sure changes not saved yet are written to the journal.
+   */
+  void flushJournal() {
+    journal.flush();
+  }
+
+  /*
+   * Each file is written to a temporary file first, so that a crash while
+   * saving leaves the previous version, and the journal is only truncated
+   * once all files are saved.
+   */
+  synchronized void save() {
+    if (!dirty) {
+      return;
+    }
+    try {
+      writeAtomically(FILE, out -> {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+        writer.write(VERSION + "\t" + rulesKey + "\n");
+        for (Map.Entry<String, Entry> e : documents.entrySet()) {
+          Entry entry = e.getValue();
+          if (isUnsafe(e.getKey()) || isUnsafe(entry.name)) {
+            continue;
+          }
+          writer.write(e.getKey() + "\t" + entry.lastModified + "\t" +
+              entry.decision + "\t" + entry.mimeType + "\t" + entry.name +
+              "\n");
+        }
+        writer.flush();
+      });
+
+      writeAtomically(DIRECTORIES_FILE, out -> {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+        directoriesLoop:
+        for (Map.Entry<String, Fingerprint> e : directories.entrySet()) {
+          Fingerprint fingerprint = e.getValue();
+          if (isUnsafe(e.getKey())) {
+            continue;
+          }
+          StringBuilder line = new StringBuilder(e.getKey());
+          for (String field : formatFingerprint(fingerprint)) {
+            if (isUnsafe(field)) {
+              continue directoriesLoop;
+            }
+            line.append('\t').append(field);
+          }
+          writer.write(line.append('\n').toString());
+        }
+        writer.flush();
+      });
+
+      writeAtomically(WATERMARKS_FILE, out -> {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+        for (Map.Entry<String, Long> e : watermarks.entrySet()) {
+          if (!isUnsafe(e.getKey())) {
+            writer.write(e.getKey() + "\t" + e.getValue() + "\n");
+          }
+        }
+        writer.flush();
+      });
+
+      writeAtomically(KNOWN_FILE, out -> {
+        DataOutputStream data = new DataOutputStream(
+            new BufferedOutputStream(out));
+        known.writeTo(data, documents.size());
+        data.flush();
+      });
+      dirty = false;
+      journal.clear();
+    } catch (IOException e) {
+      Log.e(TAG, "Write to index failed: " + e.toString());
+    }
+  }
+
+  private AtomicFile getFile(String name) {
+    return new AtomicFile(new File(context.getFilesDir(), name));
+  }
+
+  private interface Content {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private void writeAtomically(String name, Content content)
+      throws IOException {
+    AtomicFile file = getFile(name);
+    FileOutputStream out = file.startWrite();
+    try {
+      content.writeTo(out);
+    } catch (IOException e) {
+      file.failWrite(out);
+      throw e;
+    }
+    file.finishWrite(out);
+  }
+
+  private void loadKnown() {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          getFile(KNOWN_FILE).openRead()));
+      try {
+        known = BloomFilter.readFrom(in, documents.size());
+      } finally {
+        in.close();
+      }
+    } catch (FileNotFoundException e) {
+      // It's not a problem, it will be rebuilt
+    } catch (IOException e) {
+      Log.e(TAG, "Read from " + KNOWN_FILE + " failed: " + e.toString());
+      known = null;
+    }
+    if (known == null) {
+      rebuildKnown();
+      // Save it with the index
+      dirty = dirty || !documents.isEmpty();
+    } else {
+      knownAdded = documents.size();
+    }
+  }
+
+  /*
+   * Builds a new Bloom filter from the index, sized to let it grow.
+   */
+  private void rebuildKnown() {
+    BloomFilter filter = new BloomFilter(
+        Math.max(KNOWN_MIN_CAPACITY, 2 * documents.size()));
+    for (Map.Entry<String, Entry> e : documents.entrySet()) {
+      filter.add(e.getKey(), e.getValue().name);
+    }
+    knownAdded = documents.size();
+    known = filter;
+  }
+
+  /*
+   * Fingerprints are stored as: last modified, minimum timestamp, child
+   * count, latest child modification date, hash of child IDs, then
+   * subdirectories.
+   */
+  private static String[] formatFingerprint(Fingerprint fingerprint) {
+    String[] fields = new String[5 + fingerprint.subdirectories.size()];
+    fields[0] = Long.toString(fingerprint.lastModified);
+    fields[1] = Long.toString(fingerprint.minimumTimestamp);
+    fields[2] = Integer.toString(fingerprint.childCount);
+    fields[3] = Long.toString(fingerprint.maxChildLastModified);
+    fields[4] = Long.toString(fingerprint.childIdsHash);
+    for (int i = 0; i < fingerprint.subdirectories.size(); i++) {
+      fields[5 + i] = fingerprint.subdirectories.get(i);
+    }
+    return fields;
+  }
+
+  private static Fingerprint parseFingerprint(String[] fields, int start) {
+    Fingerprint fingerprint = new Fingerprint(
+        Long.parseLong(fields[start]), Long.parseLong(fields[start + 1]));
+    fingerprint.childCount = Integer.parseInt(fields[start + 2]);
+    fingerprint.maxChildLastModified = Long.parseLong(fields[start + 3]);
+    fingerprint.childIdsHash = Long.parseLong(fields[start + 4]);
+    for (int i = start + 5; i < fields.length; i++) {
+      fingerprint.subdirectories.add(fields[i]);
+    }
+    return fingerprint;
+  }
+
+  private static boolean isUnsafe(String field) {
+    return field.indexOf('\t') != -1 || field.indexOf('\n') != -1;
+  }
+
+  static class Entry {
+    final String name;
+    final String mimeType;
+    final long lastModified;
+    final String decision;
+
+    Entry(String name, String mimeType, long lastModified, String decision) {
+      this.name = name;
+      this.mimeType = mimeType;
+      this.lastModified = lastModified;
+      this.decision = decision;
+    }
+  }
+
+  /*
+   * What a directory looked like when it was last fully processed: its own
+   * modification date (which changes when a child is added, removed or
+   * renamed), and a summary of its children.
+   */
+  static class Fingerprint {
+    final long lastModified;
+    // Files older than this were not looked at during the scan
+    final long minimumTimestamp;
+    int childCount = 0;
+    long maxChildLastModified = 0;
+    long childIdsHash = 0;
+    final List<String> subdirectories = new ArrayList<>();
+
+    Fingerprint(long lastModified, long minimumTimestamp) {
+      this.lastModified = lastModified;
+      this.minimumTimestamp = minimumTimestamp;
+    }
+
+    void addChild(String docId, long lastModified) {
+      childCount++;
+      maxChildLastModified = Math.max(maxChildLastModified, lastModified);
+      // Order-independent, because providers don't guarantee any order
+      childIdsHash += 0x9E3779B97F4A7C15L * docId.hashCode() + 1;
+    }
+
+    /*
+     * Returns true if this fingerprint can be trusted for a scan that looks at
+     * files newer than minimumTimestamp.
+     */
+    boolean covers(long minimumTimestamp) {
+      return this.minimumTimestamp <= minimumTimestamp;
+    }
+
+    boolean hasSameChildren(Fingerprint other) {
+      return childCount == other.childCount &&
+          maxChildLastModified == other.maxChildLastModified &&
+          childIdsHash == other.childIdsHash;
+    }
+  }
+}
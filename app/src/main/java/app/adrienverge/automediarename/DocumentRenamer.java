@@ -0,0 +1,261 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+import androidx.annotation.RequiresApi;
+
+/*
+ * Renames documents through DocumentsContract, and records how long each
+ * call takes.
+ *
+ * Each rename is a binder round-trip to the DocumentsProvider. On Android 11+,
+ * renames of the same directory can be collected and sent as one batch of
+ * ContentProviderOperation calls, which DocumentsProvider runs one after the
+ * other in a single round-trip. If the provider doesn't support it, documents
+ * are renamed one by one.
+ */
+class DocumentRenamer {
+  private static final String TAG = "automediarename";
+  // What DocumentsContract.renameDocument() sends to the provider
+  private static final String METHOD_RENAME_DOCUMENT = "android:renameDocument";
+  private static final String EXTRA_URI = "uri";
+
+  private ContentResolver contentResolver;
+  private Stats stats;
+  private int batchSize;
+  private volatile boolean batchSupported;
+  // Renames waiting to be sent, by directory
+  private Map<String, List<Rename>> pending = new HashMap<>();
+
+  DocumentRenamer(ContentResolver contentResolver, Stats stats,
+      int batchSize) {
+    this.contentResolver = contentResolver;
+    this.stats = stats;
+    this.batchSize = batchSize;
+    this.batchSupported =
+        batchSize > 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+  }
+
+  /*
+   * Renames a document now. Returns its new URI, or null if the provider
+   * didn't tell.
+   */
+  Uri rename(Uri uri, String newName) throws FileNotFoundException {
+    long start = SystemClock.elapsedRealtime();
+    try {
+      return DocumentsContract.renameDocument(contentResolver, uri, newName);
+    } finally {
+      long elapsed = SystemClock.elapsedRealtime() - start;
+      stats.increment("rename_calls");
+      stats.add("rename_millis", elapsed);
+      stats.max("rename_max_millis", elapsed);
+      Log.v(TAG, "Renamed " + uri + " in " + elapsed + " ms");
+    }
+  }
+
+  /*
+   * Renames a document, possibly later in a batch with other documents of
+   * the same directory. The callback is called once done.
+   */
+  void submit(String directory, Uri uri, String newName, Callback callback) {
+    if (!batchSupported) {
+      renameNow(new Rename(uri, newName, callback));
+      return;
+    }
+    List<Rename> batch;
+    synchronized (this) {
+      batch = pending.get(directory);
+      if (batch == null) {
+        batch = new ArrayList<>();
+        pending.put(directory, batch);
+      }
+      batch.add(new Rename(uri, newName, callback));
+      if (batch.size() < batchSize) {
+        return;
+      }
+      pending.remove(directory);
+    }
+    apply(batch);
+  }
+
+  /*
+   * Sends all pending renames.
+   */
+  void flush() {
+    List<List<Rename>> batches;
+    synchronized (this) {
+      batches = new ArrayList<>(pending.values());
+      pending.clear();
+    }
+    for (List<Rename> batch : batches) {
+      apply(batch);
+    }
+  }
+
+  private void apply(List<Rename> batch) {
+    // The version is checked again here, for lint to see it
+    if (batch.size() == 1 || !batchSupported ||
+        Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+      for (Rename rename : batch) {
+        renameNow(rename);
+      }
+      return;
+    }
+    applyBatch(batch);
+  }
+
+  /*
+   * ContentProviderOperation.newCall() and ContentProviderResult.extras are
+   * new in Android 11.
+   */
+  @RequiresApi(Build.VERSION_CODES.R)
+  private void applyBatch(List<Rename> batch) {
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+    for (Rename rename : batch) {
+      Bundle extras = new Bundle();
+      extras.putParcelable(EXTRA_URI, rename.uri);
+      extras.putString(Document.COLUMN_DISPLAY_NAME, rename.newName);
+      operations.add(ContentProviderOperation
+          .newCall(rename.uri, METHOD_RENAME_DOCUMENT, null)
+          .withExtras(extras)
+          .build());
+    }
+
+    ContentProviderResult[] results = null;
+    long start = SystemClock.elapsedRealtime();
+    try {
+      results = contentResolver.applyBatch(
+          batch.get(0).uri.getAuthority(), operations);
+    } catch (Exception e) {
+      Log.e(TAG, "Batch rename failed, falling back to single renames: " +
+          e.toString());
+      if (isUnsupported(e)) {
+        batchSupported = false;
+      }
+    } finally {
+      long elapsed = SystemClock.elapsedRealtime() - start;
+      stats.increment("rename_batch_calls");
+      stats.add("rename_batch_millis", elapsed);
+      stats.max("rename_batch_max_millis", elapsed);
+      Log.v(TAG, "Renamed a batch of " + batch.size() + " documents in " +
+          elapsed + " ms");
+    }
+
+    if (results == null) {
+      // The provider stops at the first failing rename: the ones before it
+      // were applied, and must not be retried.
+      for (Rename rename : batch) {
+        if (exists(rename.uri)) {
+          renameNow(rename);
+        } else {
+          Uri newUri = DocumentsContract.buildDocumentUriUsingTree(rename.uri,
+              Worker.getSiblingDocId(
+                DocumentsContract.getDocumentId(rename.uri), rename.newName));
+          rename.callback.done(true, exists(newUri) ? newUri : null);
+        }
+      }
+      return;
+    }
+
+    stats.add("rename_batched", batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      Rename rename = batch.get(i);
+      ContentProviderResult result = i < results.length ? results[i] : null;
+      if (result != null && result.exception == null) {
+        Uri newUri = result.extras == null ? null :
+            result.extras.<Uri>getParcelable(EXTRA_URI);
+        rename.callback.done(true, newUri);
+      } else {
+        renameNow(rename);
+      }
+    }
+  }
+
+  /*
+   * Returns true if the provider can't run renames as batch operations at
+   * all, rather than failing on one of them.
+   */
+  private static boolean isUnsupported(Throwable e) {
+    for (; e != null; e = e.getCause()) {
+      if (e instanceof UnsupportedOperationException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean exists(Uri uri) {
+    final String[] projection = {Document.COLUMN_DOCUMENT_ID};
+    try (Cursor c = contentResolver.query(uri, projection, null, null, null)) {
+      return c != null && c.moveToFirst();
+    } catch (Exception e) {
+      // Providers throw when the document doesn't exist
+      return false;
+    }
+  }
+
+  private void renameNow(Rename rename) {
+    boolean success = false;
+    Uri newUri = null;
+    try {
+      newUri = rename(rename.uri, rename.newName);
+      success = true;
+    } catch (FileNotFoundException e) {
+      Log.e(TAG, "FileNotFoundException: " + rename.uri);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Cannot rename " + rename.uri + ": " + e.toString());
+    }
+    rename.callback.done(success, newUri);
+  }
+
+  interface Callback {
+    /*
+     * newUri can be null if the provider didn't tell.
+     */
+    void done(boolean success, Uri newUri);
+  }
+
+  private static class Rename {
+    final Uri uri;
+    final String newName;
+    final Callback callback;
+
+    Rename(Uri uri, String newName, Callback callback) {
+      this.uri = uri;
+      this.newName = newName;
+      this.callback = callback;
+    }
+  }
+}
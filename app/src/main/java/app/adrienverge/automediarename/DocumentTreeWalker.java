@@ -0,0 +1,377 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+
+/*
+ * Walks a document tree through DocumentsContract, and feeds files matching a
+ * selection rule into a queue.
+ *
+ * Listing a directory through a DocumentsProvider is dominated by IPC latency,
+ * so several directories are listed at once on a bounded pool of threads. The
+ * queue of candidates is bounded too: listing pauses when the worker can't
+ * keep up.
+ */
+class DocumentTreeWalker extends Walker {
+  private static final long UNKNOWN_LAST_MODIFIED = -1;
+
+  private ContentResolver contentResolver;
+  private Uri rootUri;
+
+  private ExecutorService executor;
+  // Directories submitted for listing and not finished yet
+  private AtomicInteger pendingDirectories = new AtomicInteger(0);
+
+  DocumentTreeWalker(Context context, Uri rootUri, Stats stats,
+      long minimumTimestampFilterInMillis,
+      long maximumTimestampFilterInMillis) {
+    super(context, stats, minimumTimestampFilterInMillis,
+        maximumTimestampFilterInMillis);
+    this.contentResolver = context.getContentResolver();
+    this.rootUri = rootUri;
+
+    this.executor = Executors.newFixedThreadPool(
+        Math.max(1, config.getTraversalListingThreads()));
+  }
+
+  @Override
+  void start() {
+    if (targetDirectories == null) {
+      submit(new DirectoryNode(DocumentsContract.getTreeDocumentId(rootUri),
+            UNKNOWN_LAST_MODIFIED, true));
+      return;
+    }
+    // Hold the count up while submitting, so that the first directories to
+    // finish don't end the walk.
+    pendingDirectories.incrementAndGet();
+    for (String docId : targetDirectories) {
+      submit(new DirectoryNode(docId, UNKNOWN_LAST_MODIFIED, false));
+    }
+    finishDirectory();
+  }
+
+  @Override
+  void stop() {
+    executor.shutdownNow();
+  }
+
+  private void submit(DirectoryNode dirNode) {
+    pendingDirectories.incrementAndGet();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            walk(dirNode);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot list " + dirNode.docId + ": " + e.toString());
+          } finally {
+            finishDirectory();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The walker was stopped
+      finishDirectory();
+    }
+  }
+
+  private void finishDirectory() {
+    if (pendingDirectories.decrementAndGet() == 0) {
+      // Subdirectories are submitted before their parent is finished, so
+      // reaching zero means that the whole tree was walked.
+      finish();
+    }
+  }
+
+  private void walk(DirectoryNode dirNode) throws InterruptedException {
+    // If nothing was added, removed or renamed in this directory since it
+    // was fully processed, there is no need to list its children: only look
+    // at its subdirectories.
+    //
+    // Only the directory's own modification date is compared: editing a file
+    // in place doesn't change it, so such edits are not seen until something
+    // else changes in the directory. Checking the children would need a query
+    // per directory, which costs about as much as listing them. This is
+    // acceptable because decisions only depend on file names and MIME types,
+    // which don't change in place. The one case missed is a file older than
+    // the minimum timestamp or the high-water mark, that becomes recent by
+    // being edited. The child count, latest child modification date and IDs
+    // of the fingerprint are not used here: they only tell, once the
+    // directory was listed anyway, that its files don't need another look.
+    DocumentIndex.Fingerprint previous = index.getDirectory(dirNode.docId);
+    if (previous != null && !previous.covers(minimumTimestampFilterInMillis)) {
+      previous = null;
+    }
+    long dirLastModified = dirNode.lastModified;
+    if (previous != null) {
+      if (dirLastModified == UNKNOWN_LAST_MODIFIED) {
+        dirLastModified = queryLastModified(dirNode.docId);
+      }
+      if (dirLastModified > 0 && dirLastModified == previous.lastModified) {
+        stats.increment("directories_skipped");
+        if (dirNode.recursive) {
+          for (String subdirectory : previous.subdirectories) {
+            submit(new DirectoryNode(subdirectory, UNKNOWN_LAST_MODIFIED, true));
+          }
+        }
+        return;
+      }
+    }
+    stats.increment("directories_listed");
+
+    List<Row> rows = listChildren(dirNode.docId);
+    DocumentIndex.Fingerprint fingerprint = new DocumentIndex.Fingerprint(
+        dirLastModified, minimumTimestampFilterInMillis);
+    for (Row row : rows) {
+      fingerprint.addChild(row.docId, row.lastModified);
+      if (Document.MIME_TYPE_DIR.equals(row.mimeType)) {
+        fingerprint.subdirectories.add(row.docId);
+        if (dirNode.recursive) {
+          submit(new DirectoryNode(row.docId, row.lastModified, true));
+        }
+      }
+    }
+
+    // The directory was touched, but its children are exactly the same as
+    // when it was fully processed: all files were already looked at.
+    if (previous != null && previous.hasSameChildren(fingerprint)) {
+      stats.increment("directories_unchanged");
+      index.putDirectory(dirNode.docId, fingerprint);
+      return;
+    }
+
+    DirectoryState state = new DirectoryState(dirNode.docId, fingerprint);
+    // The whole listing is at hand: rename conflicts can be found without
+    // asking the provider.
+    List<String> names = new ArrayList<>(rows.size());
+    for (Row row : rows) {
+      if (row.name != null) {
+        names.add(row.name);
+      }
+    }
+    state.addNames(names);
+
+    try {
+      for (Row row : rows) {
+        if (!Document.MIME_TYPE_DIR.equals(row.mimeType)) {
+          visitFile(state, row.docId, row.name, row.mimeType, row.lastModified,
+              row.size, null);
+        }
+      }
+    } catch (InterruptedException e) {
+      state.aborted = true;
+      throw e;
+    } finally {
+      state.listed();
+    }
+  }
+
+  private List<Row> listChildren(String dirDocId) {
+    List<Row> rows = new ArrayList<>();
+
+    Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+        rootUri, dirDocId);
+    final String[] projection = {
+        Document.COLUMN_DOCUMENT_ID, Document.COLUMN_DISPLAY_NAME,
+        Document.COLUMN_MIME_TYPE,
+        Document.COLUMN_LAST_MODIFIED, Document.COLUMN_SIZE};
+    int pageSize = config.getTraversalPageSize();
+    int offset = 0;
+    // Pages can overlap if the directory changes in between
+    Set<String> seen = new HashSet<>();
+    while (true) {
+      Bundle queryArgs = null;
+      if (pageSize > 0) {
+        queryArgs = new Bundle();
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, pageSize);
+        queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, offset);
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER,
+            Document.COLUMN_DOCUMENT_ID);
+      }
+      stats.increment("cursor_queries");
+      Cursor c = contentResolver.query(
+          childrenUri, projection,
+          // Here, it would be great for performance to filter the SQL
+          // selection based on MIME types and last modified dates, e.g.
+          //     Document.COLUMN_LAST_MODIFIED + " > ?",
+          // but unfortunately it's not possible to filter with
+          // DocumentsProvider: https://stackoverflow.com/a/61214849
+          // So we need to get a big batch of results and filter them
+          // ourselves.
+          queryArgs, null);
+      if (c == null) {
+        return rows;
+      }
+
+      boolean paged;
+      boolean sorted;
+      int count = 0;
+      try {
+        // Providers that don't support paging return all rows at once
+        paged = queryArgs != null &&
+            isHonored(c, ContentResolver.QUERY_ARG_LIMIT) &&
+            isHonored(c, ContentResolver.QUERY_ARG_OFFSET);
+        sorted = isHonored(c, ContentResolver.QUERY_ARG_SQL_SORT_ORDER);
+        if (!paged || sorted) {
+          count = readRows(c, rows, seen);
+        }
+      } finally {
+        try {
+          c.close();
+        } catch (RuntimeException re) {
+          throw re;
+        } catch (Exception ignore) {
+          // ignore exception
+        }
+      }
+
+      if (paged && !sorted) {
+        // Without a stable order, pages could skip or repeat rows: list all
+        // children at once instead.
+        pageSize = 0;
+        continue;
+      }
+      if (!paged || count < pageSize) {
+        // A row can still be missed if an earlier one was deleted between
+        // two pages. The directory was modified then, so it is listed again
+        // during next run.
+        return rows;
+      }
+      offset += count;
+    }
+  }
+
+  private static boolean isHonored(Cursor c, String queryArg) {
+    Bundle extras = c.getExtras();
+    if (extras == null) {
+      return false;
+    }
+    String[] honoredArgs =
+        extras.getStringArray(ContentResolver.EXTRA_HONORED_ARGS);
+    if (honoredArgs == null) {
+      return false;
+    }
+    for (String arg : honoredArgs) {
+      if (queryArg.equals(arg)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Reads all rows of a cursor, and counts how many times its window had to
+   * be filled from the provider. Each fill is a round-trip through binder.
+   * Rows already seen on a previous page are counted, but not added again.
+   */
+  private int readRows(Cursor c, List<Row> rows, Set<String> seen) {
+    Cursor inner = c;
+    while (inner instanceof CursorWrapper) {
+      inner = ((CursorWrapper) inner).getWrappedCursor();
+    }
+    int count = 0;
+    int windowStart = -1;
+    while (c.moveToNext()) {
+      if (inner instanceof AbstractWindowedCursor) {
+        CursorWindow window = ((AbstractWindowedCursor) inner).getWindow();
+        if (window != null && window.getStartPosition() != windowStart) {
+          windowStart = window.getStartPosition();
+          stats.increment("cursor_window_fills");
+        }
+      }
+      if (seen.add(c.getString(0))) {
+        rows.add(new Row(c.getString(0), c.getString(1), c.getString(2),
+              c.getLong(3),
+              c.isNull(4) ? Candidate.UNKNOWN_SIZE : c.getLong(4)));
+      }
+      count++;
+    }
+    stats.add("cursor_rows", count);
+    return count;
+  }
+
+  /*
+   * Asks the provider for the modification date of one document only, which
+   * is much cheaper than listing a whole directory.
+   */
+  private long queryLastModified(String docId) {
+    Uri uri = DocumentsContract.buildDocumentUriUsingTree(rootUri, docId);
+    final String[] projection = {Document.COLUMN_LAST_MODIFIED};
+    stats.increment("cursor_queries");
+    try (Cursor c = contentResolver.query(uri, projection, null, null, null)) {
+      if (c != null && c.moveToFirst()) {
+        return c.getLong(0);
+      }
+    } catch (Exception e) {
+      Log.e(TAG, "Cannot query " + uri + ": " + e.toString());
+    }
+    return UNKNOWN_LAST_MODIFIED;
+  }
+
+  private static class DirectoryNode {
+    final String docId;
+    final long lastModified;
+    final boolean recursive;
+
+    DirectoryNode(String docId, long lastModified, boolean recursive) {
+      this.docId = docId;
+      this.lastModified = lastModified;
+      this.recursive = recursive;
+    }
+  }
+
+  private static class Row {
+    final String docId;
+    final String name;
+    final String mimeType;
+    final long lastModified;
+    final long size;
+
+    Row(String docId, String name, String mimeType, long lastModified,
+        long size) {
+      this.docId = docId;
+      this.name = name;
+      this.mimeType = mimeType;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Set;
+
+/*
+ * Walks a directory tree with java.nio, and tells a sink about each directory
+ * and regular file, with the document ID that ExternalStorageProvider gives
+ * it (e.g. "primary:DCIM/Camera/20221202_200100.jpg").
+ *
+ * This is the part of FileSystemWalker that only depends on the filesystem,
+ * so that it can be tested on the JVM.
+ */
+class FileSystemScanner {
+  private final Path rootPath;
+  private final String rootDocId;
+
+  interface Sink {
+    void enterDirectory(String docId);
+
+    void visitFile(String docId, String name, String mimeType,
+        long lastModified, long size, Path path) throws InterruptedException;
+
+    /*
+     * Called once all entries of the directory were visited. If failed is
+     * true, some of them could not be read.
+     */
+    void leaveDirectory(boolean failed);
+
+    /*
+     * Unreadable entries are skipped, they don't stop the walk.
+     */
+    void visitFailed(Path path, IOException e);
+  }
+
+  FileSystemScanner(Path rootPath, String rootDocId) {
+    this.rootPath = rootPath;
+    this.rootDocId = rootDocId;
+  }
+
+  /*
+   * Walks the whole tree. Throws InterruptedIOException if the sink was
+   * interrupted.
+   */
+  void walk(Sink sink) throws IOException {
+    Files.walkFileTree(rootPath, new Visitor(sink));
+  }
+
+  /*
+   * Only walks these directories and their direct children, not their
+   * subdirectories. Directories outside of the tree are ignored.
+   */
+  void walk(Set<String> directoryDocIds, Sink sink) throws IOException {
+    for (String docId : directoryDocIds) {
+      Path path = toPath(docId);
+      if (path != null) {
+        Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), 1,
+            new Visitor(sink));
+      }
+    }
+  }
+
+  /*
+   * Returns the document ID of a file under the root directory.
+   */
+  String toDocId(Path path) {
+    String relative = rootPath.relativize(path).toString();
+    if (relative.isEmpty()) {
+      return rootDocId;
+    } else if (rootDocId.endsWith(":")) {
+      return rootDocId + relative;
+    } else {
+      return rootDocId + "/" + relative;
+    }
+  }
+
+  /*
+   * Returns the path of a document under the root directory, or null.
+   */
+  Path toPath(String docId) {
+    return FileUtil.docIdToPath(docId, rootDocId, rootPath);
+  }
+
+  static String guessMimeType(String name) {
+    String mimeType = URLConnection.guessContentTypeFromName(name);
+    return mimeType != null ? mimeType : "application/octet-stream";
+  }
+
+  private class Visitor extends SimpleFileVisitor<Path> {
+    private final Sink sink;
+
+    Visitor(Sink sink) {
+      this.sink = sink;
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir,
+        BasicFileAttributes attrs) {
+      sink.enterDirectory(toDocId(dir));
+      return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+      sink.leaveDirectory(e != null);
+      return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+        throws IOException {
+      if (!attrs.isRegularFile()) {
+        return FileVisitResult.CONTINUE;
+      }
+      String name = file.getFileName().toString();
+      try {
+        sink.visitFile(toDocId(file), name, guessMimeType(name),
+            attrs.lastModifiedTime().toMillis(), attrs.size(), file);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException e) {
+      sink.visitFailed(file, e);
+      return FileVisitResult.CONTINUE;
+    }
+  }
+}
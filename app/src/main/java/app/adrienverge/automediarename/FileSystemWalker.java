@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Walks the media directory directly on the filesystem with java.nio, when
+ * the app has full path access (MANAGE_EXTERNAL_STORAGE). File attributes come
+ * with the directory entries, and there is no IPC to the DocumentsProvider at
+ * all.
+ *
+ * Document IDs are derived from paths the same way ExternalStorageProvider
+ * does (see FileSystemScanner), so that found files can still be processed
+ * through DocumentsContract.
+ */
+class FileSystemWalker extends Walker {
+  private Path rootPath;
+  private FileSystemScanner scanner;
+  private Thread thread;
+
+  FileSystemWalker(Context context, Path rootPath, String rootDocId,
+      Stats stats, long minimumTimestampFilterInMillis,
+      long maximumTimestampFilterInMillis) {
+    super(context, stats, minimumTimestampFilterInMillis,
+        maximumTimestampFilterInMillis);
+    this.rootPath = rootPath;
+    this.scanner = new FileSystemScanner(rootPath, rootDocId);
+  }
+
+  @Override
+  void start() {
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (targetDirectories == null) {
+            scanner.walk(new Sink());
+          } else {
+            scanner.walk(targetDirectories, new Sink());
+          }
+        } catch (InterruptedIOException e) {
+          // The walker was stopped
+        } catch (IOException e) {
+          Log.e(TAG, "Cannot walk " + rootPath + ": " + e.toString());
+        } finally {
+          finish();
+        }
+      }
+    }, "FileSystemWalker");
+    thread.start();
+  }
+
+  @Override
+  void stop() {
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /*
+   * Files are visited one at a time, so the directory listing is not known
+   * in advance: look at the filesystem, which is only a stat() call.
+   */
+  @Override
+  protected boolean isNameTaken(DirectoryState state, String newName,
+      Path path) {
+    return super.isNameTaken(state, newName, path) ||
+        (path != null && Files.exists(path.resolveSibling(newName)));
+  }
+
+  private class Sink implements FileSystemScanner.Sink {
+    // Directories being visited, the deepest one on top
+    private Deque<DirectoryState> states = new ArrayDeque<>();
+
+    @Override
+    public void enterDirectory(String docId) {
+      stats.increment("directories_listed");
+      states.push(new DirectoryState(docId, null));
+    }
+
+    @Override
+    public void leaveDirectory(boolean failed) {
+      DirectoryState state = states.pop();
+      if (failed) {
+        // Some entries could not be read
+        state.aborted = true;
+      }
+      state.listed();
+    }
+
+    @Override
+    public void visitFile(String docId, String name, String mimeType,
+        long lastModified, long size, Path path) throws InterruptedException {
+      try {
+        FileSystemWalker.this.visitFile(states.peek(), docId, name, mimeType,
+            lastModified, size, path);
+      } catch (InterruptedException e) {
+        for (DirectoryState state : states) {
+          state.aborted = true;
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    public void visitFailed(Path path, IOException e) {
+      // The directory must be looked at again next time
+      Log.e(TAG, "Cannot visit " + path + ": " + e.toString());
+      if (!states.isEmpty()) {
+        states.peek().aborted = true;
+      }
+    }
+  }
+}
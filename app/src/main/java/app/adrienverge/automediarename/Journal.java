@@ -0,0 +1,312 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Append-only log of what the worker did since the document index was last
+ * saved, so that a run stopped by the system (quota, Doze...) loses nothing:
+ *
+ * - Changes to the index (decisions, high-water marks) are replayed when the
+ *   index is loaded, so that next run resumes where the last one stopped.
+ * - Each step of the recompression sequence (write the temporary file, back
+ *   up the original, give its name to the temporary file, delete the backup)
+ *   is recorded, so that half-finished sequences can be repaired without
+ *   looking for leftover files in the whole tree.
+ *
+ * Once the index is saved, its records are not needed anymore and the
+ * journal is truncated, keeping only the sequences still unfinished.
+ *
+ * Runs started by different works (one-shot, periodic, content trigger) can
+ * overlap: each sequence records the run that began it, and is only handed
+ * for repair once that run is over.
+ *
+ * Records are tab-separated lines, like the index files.
+ */
+class Journal {
+  private static final String TAG = "automediarename";
+  private static final String FILE = "journal.txt";
+
+  // Recompression sequence records
+  private static final String BEGIN = "begin";
+  private static final String STEP = "step";
+  private static final String END = "end";
+  // The temporary file is being written, the original is untouched
+  static final String STEP_BEGUN = "begun";
+  // The original was renamed to its backup name
+  static final String STEP_BACKED_UP = "backed_up";
+  // The temporary file was given its new name, only the backup remains
+  static final String STEP_REPLACED = "replaced";
+
+  private static Journal instance;
+  private Context context;
+  private BufferedWriter writer;
+  // Index records found when loading, until the index takes them
+  private List<String[]> indexRecords = new ArrayList<>();
+  // Unfinished sequences, by document ID of the original file
+  private Map<String, Sequence> sequences = new LinkedHashMap<>();
+  // Runs of this process that are still going
+  private Set<String> liveRuns = new HashSet<>();
+
+  static Journal getInstance(Context context) {
+    synchronized (Journal.class) {
+      if (instance == null) {
+        instance = new Journal(context.getApplicationContext());
+      }
+    }
+    return instance;
+  }
+
+  private Journal(Context context) {
+    this.context = context;
+
+    load();
+  }
+
+  private void load() {
+    try {
+      InputStreamReader inputStreamReader =
+          new InputStreamReader(context.openFileInput(FILE));
+      BufferedReader reader = new BufferedReader(inputStreamReader);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        if (BEGIN.equals(fields[0]) && fields.length == 5) {
+          sequences.put(fields[2], new Sequence(fields[1], fields[2],
+              fields[3], fields[4], STEP_BEGUN));
+        } else if (BEGIN.equals(fields[0]) && fields.length == 4) {
+          // Written before runs were recorded
+          sequences.put(fields[1], new Sequence("", fields[1], fields[2],
+              fields[3], STEP_BEGUN));
+        } else if (STEP.equals(fields[0]) && fields.length == 3) {
+          Sequence sequence = sequences.get(fields[1]);
+          if (sequence != null) {
+            sequence.step = fields[2];
+          }
+        } else if (END.equals(fields[0]) && fields.length == 2) {
+          sequences.remove(fields[1]);
+        } else {
+          indexRecords.add(fields);
+        }
+      }
+      inputStreamReader.close();
+    } catch (FileNotFoundException e) {
+      // It's not a problem, nothing was left unsaved
+    } catch (IOException e) {
+      // The end of the file may be lost, but what was read is still valid
+      Log.e(TAG, "Read from " + FILE + " failed: " + e.toString());
+    }
+  }
+
+  /*
+   * Returns the index records that were not saved in the index, and forgets
+   * them.
+   */
+  synchronized List<String[]> takeIndexRecords() {
+    List<String[]> records = indexRecords;
+    indexRecords = new ArrayList<>();
+    return records;
+  }
+
+  /*
+   * Must be called when a run starts, before it begins any sequence.
+   */
+  synchronized void startRun(String runId) {
+    liveRuns.add(runId);
+  }
+
+  /*
+   * Must be called once a run won't touch any file anymore: its unfinished
+   * sequences can then be repaired by other runs.
+   */
+  synchronized void endRun(String runId) {
+    liveRuns.remove(runId);
+  }
+
+  /*
+   * Returns recompression sequences that were not finished by runs that are
+   * over.
+   */
+  synchronized List<Sequence> getUnfinished() {
+    List<Sequence> unfinished = new ArrayList<>();
+    for (Sequence sequence : sequences.values()) {
+      if (!liveRuns.contains(sequence.runId)) {
+        unfinished.add(sequence);
+      }
+    }
+    return unfinished;
+  }
+
+  /*
+   * Records a change to the index. It is buffered, unless it must be durable
+   * right away.
+   */
+  synchronized void append(boolean durable, String... fields) {
+    if (!isUnsafe(fields)) {
+      write(fields, durable);
+    }
+  }
+
+  /*
+   * Must be called before the temporary file of a document is created.
+   */
+  synchronized void begin(String runId, String docId, String name,
+      String newName) {
+    if (isUnsafe(runId, docId, name, newName)) {
+      return;
+    }
+    sequences.put(docId,
+        new Sequence(runId, docId, name, newName, STEP_BEGUN));
+    write(new String[] {BEGIN, runId, docId, name, newName}, true);
+  }
+
+  synchronized void step(String docId, String step) {
+    Sequence sequence = sequences.get(docId);
+    if (sequence != null) {
+      sequence.step = step;
+      write(new String[] {STEP, docId, step}, true);
+    }
+  }
+
+  synchronized void end(String docId) {
+    if (sequences.remove(docId) != null) {
+      write(new String[] {END, docId}, true);
+    }
+  }
+
+  /*
+   * Same as end(), unless a new sequence was begun for the same document.
+   */
+  synchronized void end(Sequence sequence) {
+    if (sequences.get(sequence.docId) == sequence) {
+      end(sequence.docId);
+    }
+  }
+
+  /*
+   * Writes buffered records to the file.
+   */
+  synchronized void flush() {
+    if (writer != null) {
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        Log.e(TAG, "Write to " + FILE + " failed: " + e.toString());
+      }
+    }
+  }
+
+  /*
+   * Forgets all index records, once the index was saved.
+   */
+  synchronized void clear() {
+    indexRecords.clear();
+    close();
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(
+          context.openFileOutput(FILE, Context.MODE_PRIVATE)));
+      for (Sequence sequence : sequences.values()) {
+        writer.write(BEGIN + "\t" + sequence.runId + "\t" + sequence.docId +
+            "\t" + sequence.name + "\t" + sequence.newName + "\n");
+        writer.write(STEP + "\t" + sequence.docId + "\t" + sequence.step +
+            "\n");
+      }
+      writer.flush();
+    } catch (IOException e) {
+      Log.e(TAG, "Truncating " + FILE + " failed: " + e.toString());
+      close();
+    }
+  }
+
+  private void write(String[] fields, boolean durable) {
+    try {
+      if (writer == null) {
+        writer = new BufferedWriter(new OutputStreamWriter(
+            context.openFileOutput(FILE, Context.MODE_APPEND)));
+      }
+      for (int i = 0; i < fields.length; i++) {
+        if (i > 0) {
+          writer.write('\t');
+        }
+        writer.write(fields[i]);
+      }
+      writer.write('\n');
+      if (durable) {
+        writer.flush();
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Write to " + FILE + " failed: " + e.toString());
+      close();
+    }
+  }
+
+  private static boolean isUnsafe(String... fields) {
+    for (String field : fields) {
+      if (field.indexOf('\t') != -1 || field.indexOf('\n') != -1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void close() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {}
+      writer = null;
+    }
+  }
+
+  /*
+   * Recompression of one document, identified by the document ID of the
+   * original file.
+   */
+  static class Sequence {
+    // The run that began it, or empty if unknown
+    final String runId;
+    final String docId;
+    final String name;
+    final String newName;
+    String step;
+
+    Sequence(String runId, String docId, String name, String newName,
+        String step) {
+      this.runId = runId;
+      this.docId = docId;
+      this.name = name;
+      this.newName = newName;
+      this.step = step;
+    }
+  }
+}
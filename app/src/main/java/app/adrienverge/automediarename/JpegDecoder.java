@@ -0,0 +1,268 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+/*
+ * Decodes JPEG images for recompression, optionally scaled down so that
+ * their largest side is at most a given number of pixels.
+ *
+ * A 108 MP photo takes more than 400 MB once decoded, so images are never
+ * decoded at full size when they are to be scaled down: the decoder skips
+ * pixels by a power of two (inSampleSize), the largest one that keeps the
+ * image at least as large as wanted, and the result is then scaled down
+ * precisely. If the subsampled image would still be much larger than the
+ * result, it is decoded in horizontal bands (with BitmapRegionDecoder) drawn
+ * one after the other onto the result.
+ *
+ * Bitmaps use ARGB_8888, unless that wouldn't fit in the available memory:
+ * JPEG images have no alpha channel, so RGB_565 only loses some color depth.
+ *
+ * Bitmaps are decoded into reused ones when possible (see BitmapPool): give
+ * them back with release() once done.
+ */
+class JpegDecoder {
+  private static final String TAG = "automediarename";
+  // Decoding in bands pays off when the subsampled image is larger than this
+  // many times the result
+  private static final int MAX_SUBSAMPLED_RATIO = 2;
+  // Approximate size of a decoded band
+  private static final int BAND_BYTES = 4 * 1024 * 1024;
+
+  private Context context;
+  private Stats stats;
+  private int maxDimension;
+  private BitmapPool pool;
+
+  JpegDecoder(Context context, Stats stats, int maxDimension,
+      int maxPooled) {
+    this.context = context;
+    this.stats = stats;
+    this.maxDimension = maxDimension;
+    this.pool = new BitmapPool(maxPooled, stats);
+  }
+
+  /*
+   * The bitmap must not be used anymore by the caller.
+   */
+  void release(Bitmap bitmap) {
+    pool.release(bitmap);
+  }
+
+  /*
+   * Frees all bitmaps kept for reuse.
+   */
+  void clear() {
+    pool.clear();
+  }
+
+  /*
+   * Reads the dimensions of an image, from a stream that supports mark() and
+   * reset(). Returns null if they can't be read without reading too much.
+   */
+  static int[] readSize(InputStream inputStream, int readLimit)
+      throws IOException {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    inputStream.mark(readLimit);
+    BitmapFactory.decodeStream(inputStream, null, options);
+    inputStream.reset();
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+    return new int[] {options.outWidth, options.outHeight};
+  }
+
+  /*
+   * Returns the size the image will have once decoded, given its original
+   * size.
+   */
+  int[] getTargetSize(int width, int height) {
+    int largest = Math.max(width, height);
+    if (maxDimension <= 0 || largest <= maxDimension) {
+      return new int[] {width, height};
+    }
+    double scale = (double) maxDimension / largest;
+    return new int[] {
+        Math.max(1, (int) Math.round(width * scale)),
+        Math.max(1, (int) Math.round(height * scale))};
+  }
+
+  /*
+   * Decodes the image, given its original size. If the size is unknown
+   * (null), the image is decoded as is, into a new bitmap. Returns null if it
+   * can't be decoded.
+   */
+  Bitmap decode(InputStream inputStream, int[] size) throws IOException {
+    if (size == null) {
+      stats.increment("bitmap_allocations");
+      return BitmapFactory.decodeStream(inputStream);
+    }
+    int width = size[0], height = size[1];
+    int[] target = getTargetSize(width, height);
+    int sampleSize = 1;
+    while (width / (2 * sampleSize) >= target[0] &&
+        height / (2 * sampleSize) >= target[1]) {
+      sampleSize *= 2;
+    }
+    int sampledWidth = width / sampleSize;
+    int sampledHeight = height / sampleSize;
+    Bitmap.Config config = chooseConfig(target[0], target[1]);
+
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inSampleSize = sampleSize;
+    options.inPreferredConfig = config;
+    options.inMutable = true;
+    if (target[0] != width || target[1] != height) {
+      stats.increment("decode_resized");
+    }
+
+    if (sampledWidth == target[0] && sampledHeight == target[1]) {
+      return decodeInto(inputStream, options, width, height);
+    } else if ((long) sampledWidth * sampledHeight <=
+        (long) MAX_SUBSAMPLED_RATIO * target[0] * target[1]) {
+      Bitmap sampled = decodeInto(inputStream, options, width, height);
+      if (sampled == null) {
+        return null;
+      }
+      Bitmap scaled = pool.obtain(target[0], target[1], config);
+      new Canvas(scaled).drawBitmap(sampled, null,
+          new Rect(0, 0, target[0], target[1]),
+          new Paint(Paint.FILTER_BITMAP_FLAG));
+      pool.release(sampled);
+      return scaled;
+    } else {
+      stats.increment("decode_banded");
+      return decodeInBands(inputStream, width, height, target, options);
+    }
+  }
+
+  private Bitmap decodeInBands(InputStream inputStream, int width,
+      int height, int[] target, BitmapFactory.Options options)
+      throws IOException {
+    BitmapRegionDecoder decoder =
+        BitmapRegionDecoder.newInstance(inputStream, false);
+    if (decoder == null) {
+      return null;
+    }
+    Bitmap output = null;
+    try {
+      output = pool.obtain(target[0], target[1], options.inPreferredConfig);
+      Canvas canvas = new Canvas(output);
+      Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+      int sampledWidth = divideRoundingUp(width, options.inSampleSize);
+      // Height of a band in original pixels, a multiple of the sample size
+      int sampledRows = Math.max(1, BAND_BYTES /
+          (BitmapPool.bytesPerPixel(options.inPreferredConfig) * sampledWidth));
+      int bandHeight = sampledRows * options.inSampleSize;
+      for (int top = 0; top < height; top += bandHeight) {
+        int bottom = Math.min(height, top + bandHeight);
+        int rows = divideRoundingUp(bottom - top, options.inSampleSize);
+        // All bands but the last one have the same size
+        options.inBitmap = pool.acquireForRegion(sampledWidth, rows,
+            options.inPreferredConfig);
+        Bitmap band = decoder.decodeRegion(
+            new Rect(0, top, width, bottom), options);
+        if (band == null) {
+          pool.release(options.inBitmap);
+          throw new IOException("Cannot decode rows " + top + " to " + bottom);
+        }
+        // A reused bitmap can be larger than the band
+        canvas.drawBitmap(band, new Rect(0, 0, sampledWidth, rows),
+            new RectF(0, (float) top * target[1] / height, target[0],
+              (float) bottom * target[1] / height), paint);
+        pool.release(band);
+      }
+      Bitmap result = output;
+      output = null;
+      return result;
+    } finally {
+      options.inBitmap = null;
+      if (output != null) {
+        pool.release(output);
+      }
+      decoder.recycle();
+    }
+  }
+
+  /*
+   * Decodes the whole image, into a reused bitmap if one is large enough.
+   */
+  private Bitmap decodeInto(InputStream inputStream,
+      BitmapFactory.Options options, int width, int height)
+      throws IOException {
+    // Depending on the sample size, the decoder rounds up or down
+    options.inBitmap = pool.acquire(
+        divideRoundingUp(width, options.inSampleSize),
+        divideRoundingUp(height, options.inSampleSize),
+        options.inPreferredConfig);
+    try {
+      Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+      if (bitmap == null) {
+        pool.release(options.inBitmap);
+      }
+      return bitmap;
+    } catch (IllegalArgumentException e) {
+      // The stream was consumed, it can't be decoded again: the file will be
+      // looked at during next run.
+      if (options.inBitmap != null) {
+        options.inBitmap.recycle();
+      }
+      throw new IOException("Cannot decode into a reused bitmap: " +
+          e.getMessage());
+    } finally {
+      options.inBitmap = null;
+    }
+  }
+
+  private static int divideRoundingUp(int a, int b) {
+    return (a + b - 1) / b;
+  }
+
+  /*
+   * Bitmaps live in native memory: use ARGB_8888 only if it fits easily in
+   * what the system has left.
+   */
+  private Bitmap.Config chooseConfig(int width, int height) {
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+    activityManager.getMemoryInfo(memoryInfo);
+    long argbBytes = 4L * width * height;
+    if (argbBytes > memoryInfo.availMem / 4) {
+      Log.i(TAG, "Low memory, decoding " + width + "x" + height +
+          " image as RGB_565");
+      stats.increment("decode_rgb565");
+      return Bitmap.Config.RGB_565;
+    }
+    return Bitmap.Config.ARGB_8888;
+  }
+}
@@ -75,7 +75,7 @@ class Logger extends LiveData<String> {
     }
   }
 
-  void addLine(String text) {
+  synchronized void addLine(String text) {
     String newLine = toISO8601(new Date()) + ": " + text + "\n";
 
     try {
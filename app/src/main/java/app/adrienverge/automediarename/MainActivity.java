@@ -21,12 +21,14 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
 
+import android.Manifest;
 import android.app.Activity;
 import android.app.DatePickerDialog;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
@@ -62,6 +64,7 @@ public class MainActivity extends AppCompatActivity {
   private static final String TAG = "automediarename";
   private static final int SELECT_DIR_RESULT = 1;
   private static final int BATTERY_OPTIMIZATIONS_RESULT = 2;
+  private static final int READ_STORAGE_PERMISSION_RESULT = 3;
   private static final String PERIODIC_WORK_NAME = "periodic-work";
   private static final String ONE_SHOT_WORK_NAME = "one-shot-work";
   private Config config;
@@ -122,6 +125,10 @@ public class MainActivity extends AppCompatActivity {
                   calendar.set(Calendar.MINUTE, 0);
                   calendar.set(Calendar.SECOND, 0);
                   config.setMinimumTimestamp(calendar.getTimeInMillis());
+                  // Files older than directories high-water marks must be
+                  // looked at again: the worker takes care of it, rather
+                  // than loading the index here.
+                  config.setClearWatermarks(true);
                   config.save();
 
                   ((EditText) findViewById(R.id.lastModifiedDateText))
@@ -196,6 +203,24 @@ public class MainActivity extends AppCompatActivity {
       }
     });
 
+    Switch eventWorkSwitch = findViewById(R.id.eventWorkSwitch);
+    eventWorkSwitch.setChecked(config.getEventWorkEnabled());
+    eventWorkSwitch.setOnClickListener(new View.OnClickListener() {
+      @Override
+      public void onClick(View view) {
+        boolean enabled = ((Switch) view).isChecked();
+        config.setEventWorkEnabled(enabled);
+        config.save();
+        if (enabled) {
+          ContentTrigger.schedule(MainActivity.this, false, false);
+          Logger.getInstance(MainActivity.this).addLine(
+              "Work will run when new media appear");
+        } else {
+          ContentTrigger.cancel(MainActivity.this);
+        }
+      }
+    });
+
     WorkManager.getInstance().getWorkInfosForUniqueWorkLiveData(ONE_SHOT_WORK_NAME)
       .observe(this, workInfos -> {
         for (WorkInfo workInfo : workInfos) {
@@ -342,6 +367,13 @@ public class MainActivity extends AppCompatActivity {
     }
   }
 
+  @Override
+  protected void onPause() {
+    super.onPause();
+    // Don't lose recent changes if the process is killed in background
+    config.flush();
+  }
+
   private void setMediaDirectoryText() {
     String dir = config.getMediaDirectory();
     if (dir != null && !dir.isEmpty()) {
@@ -387,6 +419,7 @@ public class MainActivity extends AppCompatActivity {
         config.setMediaDirectory(uri.toString());
         config.save();
         setMediaDirectoryText();
+        requestReadStoragePermission();
       }
 
     } else if (requestCode == BATTERY_OPTIMIZATIONS_RESULT) {
@@ -396,6 +429,21 @@ public class MainActivity extends AppCompatActivity {
     }
   }
 
+  /*
+   * Lets the worker query MediaStore (see MediaStoreWalker), which only
+   * returns files of other apps with this permission.
+   */
+  private void requestReadStoragePermission() {
+    String backend = config.getTraversalBackend();
+    if (("auto".equals(backend) || "mediastore".equals(backend)) &&
+        checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE) !=
+        PackageManager.PERMISSION_GRANTED) {
+      requestPermissions(
+          new String[] {Manifest.permission.READ_EXTERNAL_STORAGE},
+          READ_STORAGE_PERMISSION_RESULT);
+    }
+  }
+
   private void requestAllFilesAccessPermission() {
     Intent intent =
         new Intent(Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION);
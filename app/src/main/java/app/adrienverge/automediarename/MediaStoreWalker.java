@@ -0,0 +1,300 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Files.FileColumns;
+import android.util.Log;
+import androidx.annotation.RequiresApi;
+
+/*
+ * Finds files through MediaStore instead of walking the tree. Unlike
+ * DocumentsProvider, MediaStore can filter on the server side, so only images
+ * and videos under the media directory that changed since the last complete
+ * run are returned: by generation number on Android 11+, by modification date
+ * on Android 10.
+ *
+ * The query is already limited to what changed, so target directories are
+ * ignored.
+ *
+ * This only works for trees of ExternalStorageProvider, whose document IDs
+ * can be derived from MediaStore's volume and relative path (e.g.
+ * "primary:DCIM/Camera/20221202_200100.jpg"). For other trees, use
+ * DocumentTreeWalker.
+ */
+class MediaStoreWalker extends Walker {
+  private static final String EXTERNAL_STORAGE_AUTHORITY =
+      "com.android.externalstorage.documents";
+  private static final String PRIMARY_VOLUME_ID = "primary";
+
+  private Context context;
+  private ContentResolver contentResolver;
+  private String rootDocId;
+  private String volumeId;
+  private String volumeName;
+  // e.g. "DCIM/Camera/", or "" for the whole volume
+  private String relativePath;
+  private boolean useGeneration;
+  private String watermarkKey;
+  private Thread thread;
+
+  // Directories found during the query, by document ID
+  private Map<String, DirectoryState> states = new HashMap<>();
+  private int pendingDirectories;
+  private boolean complete = true;
+  // What to store once all directories were fully processed
+  private long nextWatermark;
+
+  MediaStoreWalker(Context context, Uri rootUri, Stats stats,
+      long minimumTimestampFilterInMillis,
+      long maximumTimestampFilterInMillis) {
+    super(context, stats, minimumTimestampFilterInMillis,
+        maximumTimestampFilterInMillis);
+    this.context = context;
+    this.contentResolver = context.getContentResolver();
+    this.rootDocId = DocumentsContract.getTreeDocumentId(rootUri);
+    int colon = rootDocId.indexOf(':');
+    this.volumeId = rootDocId.substring(0, colon);
+    this.volumeName = getVolumeName(volumeId);
+    String path = rootDocId.substring(colon + 1);
+    this.relativePath = path.isEmpty() || path.endsWith("/") ? path : path + "/";
+    this.useGeneration = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+    this.watermarkKey = "mediastore " + volumeName + " " + rootDocId +
+        (useGeneration ? " generation" : " date");
+  }
+
+  /*
+   * Returns true if files of this tree can be found through MediaStore.
+   */
+  static boolean canWalk(Context context, Uri rootUri) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q ||
+        !EXTERNAL_STORAGE_AUTHORITY.equals(rootUri.getAuthority())) {
+      return false;
+    }
+    if (!canReadAllMedia(context)) {
+      return false;
+    }
+    try {
+      String docId = DocumentsContract.getTreeDocumentId(rootUri);
+      int colon = docId.indexOf(':');
+      if (colon <= 0) {
+        return false;
+      }
+      Set<String> volumes = MediaStore.getExternalVolumeNames(context);
+      return volumes.contains(getVolumeName(docId.substring(0, colon)));
+    } catch (Exception e) {
+      Log.e(TAG, "Cannot map " + rootUri + " to MediaStore: " + e.toString());
+      return false;
+    }
+  }
+
+  /*
+   * Without storage permission, MediaStore only returns files created by this
+   * app.
+   */
+  static boolean canReadAllMedia(Context context) {
+    return context.checkSelfPermission(
+        Manifest.permission.READ_EXTERNAL_STORAGE) ==
+        PackageManager.PERMISSION_GRANTED ||
+        (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R &&
+         Environment.isExternalStorageManager());
+  }
+
+  private static String getVolumeName(String volumeId) {
+    if (PRIMARY_VOLUME_ID.equals(volumeId)) {
+      return MediaStore.VOLUME_EXTERNAL_PRIMARY;
+    }
+    // Secondary volumes are named after their lowercase UUID, e.g. "1a2b-3c4d"
+    return volumeId.toLowerCase(Locale.ROOT);
+  }
+
+  @Override
+  void start() {
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          query();
+        } catch (InterruptedException e) {
+          // The walker was stopped
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Cannot query MediaStore: " + e.toString());
+        } finally {
+          finish();
+        }
+      }
+    }, "MediaStoreWalker");
+    thread.start();
+  }
+
+  @Override
+  void stop() {
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  private void query() throws InterruptedException {
+    long watermark = index.getWatermark(watermarkKey);
+
+    StringBuilder selection = new StringBuilder();
+    List<String> selectionArgs = new ArrayList<>();
+    selection.append(FileColumns.MEDIA_TYPE + " IN (" +
+        FileColumns.MEDIA_TYPE_IMAGE + ", " + FileColumns.MEDIA_TYPE_VIDEO + ")");
+    if (!relativePath.isEmpty()) {
+      selection.append(" AND " + MediaStore.MediaColumns.RELATIVE_PATH +
+          " LIKE ? ESCAPE '\\'");
+      selectionArgs.add(escapeLike(relativePath) + "%");
+    }
+    long minimumTimestamp = minimumTimestampFilterInMillis;
+    if (useGeneration) {
+      long generation = getGeneration();
+      if (watermark > generation) {
+        // The MediaStore database was rebuilt, start over
+        watermark = 0;
+      }
+      nextWatermark = generation;
+      selection.append(" AND " + MediaStore.MediaColumns.GENERATION_MODIFIED +
+          " > ?");
+      selectionArgs.add(Long.toString(watermark));
+    } else {
+      nextWatermark = watermark;
+      minimumTimestamp = Math.max(minimumTimestamp,
+          watermark - watermarkOverlapInMillis);
+    }
+    // DATE_MODIFIED is in seconds
+    selection.append(" AND " + MediaStore.MediaColumns.DATE_MODIFIED + " >= ?");
+    selectionArgs.add(Long.toString(minimumTimestamp / 1000));
+
+    final String[] projection = {
+        MediaStore.MediaColumns.DISPLAY_NAME,
+        MediaStore.MediaColumns.RELATIVE_PATH,
+        MediaStore.MediaColumns.MIME_TYPE,
+        MediaStore.MediaColumns.DATE_MODIFIED,
+        MediaStore.MediaColumns.SIZE};
+    try (Cursor c = contentResolver.query(
+          MediaStore.Files.getContentUri(volumeName), projection,
+          selection.toString(), selectionArgs.toArray(new String[0]), null)) {
+      if (c == null) {
+        complete = false;
+        return;
+      }
+      while (c.moveToNext()) {
+        stats.increment("mediastore_rows");
+        String name = c.getString(0);
+        String dirPath = c.getString(1);
+        if (name == null || dirPath == null) {
+          continue;
+        }
+        if (!dirPath.endsWith("/")) {
+          dirPath += "/";
+        }
+        long lastModified = 1000L * c.getLong(3);
+        if (!useGeneration && !isTooRecent(lastModified)) {
+          nextWatermark = Math.max(nextWatermark, lastModified);
+        }
+        visitFile(getState(dirPath), volumeId + ":" + dirPath + name, name,
+            c.getString(2), lastModified,
+            c.isNull(4) ? Candidate.UNKNOWN_SIZE : c.getLong(4), null);
+      }
+    } catch (InterruptedException e) {
+      for (DirectoryState state : states.values()) {
+        state.aborted = true;
+      }
+      throw e;
+    } finally {
+      List<DirectoryState> found;
+      synchronized (this) {
+        found = new ArrayList<>(states.values());
+        pendingDirectories = found.size();
+      }
+      for (DirectoryState state : found) {
+        state.listed();
+      }
+      if (found.isEmpty()) {
+        commitWatermark();
+      }
+    }
+  }
+
+  @RequiresApi(Build.VERSION_CODES.R)
+  private long getGeneration() {
+    return MediaStore.getGeneration(context, volumeName);
+  }
+
+  private DirectoryState getState(String dirPath) {
+    // Document ID of the directory, without trailing slash
+    String docId = volumeId + ":" + dirPath.substring(0, dirPath.length() - 1);
+    DirectoryState state = states.get(docId);
+    if (state == null) {
+      state = new DirectoryState(docId, null);
+      synchronized (this) {
+        states.put(docId, state);
+      }
+    }
+    return state;
+  }
+
+  @Override
+  protected void directoryDone(DirectoryState state) {
+    boolean last;
+    synchronized (this) {
+      if (!state.complete || state.aborted) {
+        complete = false;
+      }
+      last = --pendingDirectories == 0;
+    }
+    if (last) {
+      commitWatermark();
+    }
+  }
+
+  /*
+   * Moves the watermark forward only if every file returned by the query was
+   * processed: otherwise, the same range will be queried again next time.
+   */
+  private void commitWatermark() {
+    boolean ok;
+    synchronized (this) {
+      ok = complete && !Thread.currentThread().isInterrupted();
+    }
+    if (ok && nextWatermark > 0) {
+      index.putWatermark(watermarkKey, nextWatermark);
+    }
+  }
+
+  private static String escapeLike(String s) {
+    return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import android.util.Log;
+
+/*
+ * A chain of stages connected by bounded queues. Each stage runs its step on
+ * its own threads, so that e.g. CPU-heavy compression of a file overlaps with
+ * I/O-heavy reading of the next one. When a queue is full, the previous stage
+ * waits.
+ *
+ * Jobs go through all stages in order, unless a step returns false. In any
+ * case, the listener is called exactly once per submitted job.
+ */
+class Pipeline<T> {
+  private static final String TAG = "automediarename";
+  // Tells a stage thread that no more jobs will come
+  private static final Object END = new Object();
+
+  private List<Stage> stages = new ArrayList<>();
+  private Listener<T> listener;
+  private CountDownLatch finished;
+
+  Pipeline(Listener<T> listener) {
+    this.listener = listener;
+  }
+
+  void addStage(String name, int threads, int queueDepth, Step<T> step) {
+    stages.add(new Stage(name, Math.max(1, threads), Math.max(1, queueDepth),
+          step));
+  }
+
+  void start() {
+    finished = new CountDownLatch(1);
+    for (int i = 0; i < stages.size(); i++) {
+      stages.get(i).start(i);
+    }
+  }
+
+  void submit(T job) throws InterruptedException {
+    stages.get(0).queue.put(job);
+  }
+
+  /*
+   * Waits until all submitted jobs went through the pipeline.
+   */
+  void finish() throws InterruptedException {
+    stages.get(0).end();
+    finished.await();
+  }
+
+  /*
+   * Interrupts all stages. Jobs that were not processed yet are dropped,
+   * without calling the listener.
+   */
+  void stop() {
+    for (Stage stage : stages) {
+      stage.stop();
+    }
+  }
+
+  /*
+   * Waits until all stage threads exited. After stop(), a step that was
+   * running when interrupted still finishes.
+   */
+  void join() throws InterruptedException {
+    for (Stage stage : stages) {
+      for (Thread thread : stage.threads) {
+        thread.join();
+      }
+    }
+  }
+
+  interface Step<T> {
+    /*
+     * Returns false if the job must not go further down the pipeline.
+     */
+    boolean run(T job) throws Exception;
+  }
+
+  interface Listener<T> {
+    void done(T job);
+  }
+
+  private class Stage {
+    final String name;
+    final int threadCount;
+    final Step<T> step;
+    final BlockingQueue<Object> queue;
+    final List<Thread> threads = new ArrayList<>();
+    int index;
+    int runningThreads;
+
+    Stage(String name, int threadCount, int queueDepth, Step<T> step) {
+      this.name = name;
+      this.threadCount = threadCount;
+      this.queue = new ArrayBlockingQueue<>(queueDepth);
+      this.step = step;
+    }
+
+    void start(int index) {
+      this.index = index;
+      this.runningThreads = threadCount;
+      for (int i = 0; i < threadCount; i++) {
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              try {
+                loop();
+              } catch (InterruptedException e) {
+                throw e;
+              } catch (Throwable e) {
+                // Only a failing listener gets here. Still count this thread
+                // as finished, so that the run doesn't wait for it forever.
+                Log.e(TAG, "Pipeline stage " + name + " died: " +
+                    e.toString());
+              }
+              threadFinished();
+            } catch (InterruptedException e) {
+              // The pipeline was stopped
+            }
+          }
+        }, "Pipeline-" + name + "-" + i);
+        threads.add(thread);
+        thread.start();
+      }
+    }
+
+    void end() throws InterruptedException {
+      for (int i = 0; i < threadCount; i++) {
+        queue.put(END);
+      }
+    }
+
+    void stop() {
+      for (Thread thread : threads) {
+        thread.interrupt();
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loop() throws InterruptedException {
+      while (true) {
+        Object item = queue.take();
+        if (item == END) {
+          return;
+        }
+
+        T job = (T) item;
+        boolean next;
+        try {
+          next = step.run(job);
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Throwable e) {
+          // Also catch errors like OutOfMemoryError on a huge image: they
+          // must not kill the thread, or the whole process with it.
+          Log.e(TAG, "Pipeline stage " + name + " failed: " + e.toString());
+          next = false;
+        }
+
+        if (next && index + 1 < stages.size()) {
+          stages.get(index + 1).queue.put(job);
+        } else {
+          listener.done(job);
+        }
+      }
+    }
+
+    private void threadFinished() throws InterruptedException {
+      boolean last;
+      synchronized (this) {
+        last = --runningThreads == 0;
+      }
+      if (last) {
+        // All jobs of this stage were passed on
+        if (index + 1 < stages.size()) {
+          stages.get(index + 1).end();
+        } else {
+          finished.countDown();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Guesses, from the JPEG header and the file size only, how small an image
+ * would become once recompressed, so that images that won't get small enough
+ * are not decoded and encoded for nothing.
+ *
+ * The quality an image was encoded with is estimated from its luminance
+ * quantization table (DQT), compared to the standard IJG table that encoders
+ * scale according to quality. The number of bytes per pixel of the image
+ * data tells how hard the image is to compress: it is scaled by the typical
+ * size of a JPEG at both qualities, and by chroma subsampling (Android always
+ * writes 4:2:0). Metadata before the image data is copied as is.
+ *
+ * This is a rough model: its error on files that do get compressed is
+ * recorded, so that the margin can be tuned.
+ */
+class QualityEstimator {
+  // Standard IJG luminance quantization table, for quality 50
+  private static final int[] STANDARD_LUMINANCE_TABLE = {
+      16, 11, 10, 16, 24, 40, 51, 61,
+      12, 12, 14, 19, 26, 58, 60, 55,
+      14, 13, 16, 24, 40, 57, 69, 56,
+      14, 17, 22, 29, 51, 87, 80, 62,
+      18, 22, 37, 56, 68, 109, 103, 77,
+      24, 35, 55, 64, 81, 104, 113, 92,
+      49, 64, 78, 87, 103, 121, 120, 101,
+      72, 92, 95, 98, 112, 100, 103, 99};
+  private static final int STANDARD_LUMINANCE_SUM = sum(STANDARD_LUMINANCE_TABLE);
+
+  // Typical size of a photo encoded at a given quality, relative to quality
+  // 70, with the IJG tables
+  private static final int[] QUALITIES = {
+      10, 20, 30, 40, 50, 60, 70, 75, 80, 85, 90, 95, 98, 100};
+  private static final double[] RELATIVE_SIZES = {
+      0.35, 0.5, 0.62, 0.72, 0.8, 0.9, 1.0, 1.1, 1.25, 1.45, 1.85, 2.7, 4.0,
+      6.0};
+  // Going from 4:4:4 to 4:2:0 halves chroma data
+  private static final double CHROMA_SUBSAMPLING_GAIN = 0.8;
+
+  private static final int MARKER_SOF0 = 0xC0;
+  private static final int MARKER_SOF2 = 0xC2;
+  private static final int MARKER_DQT = 0xDB;
+  private static final int MARKER_SOS = 0xDA;
+  private static final int MARKER_EOI = 0xD9;
+
+  /*
+   * What the JPEG header tells about an image.
+   */
+  static class Header {
+    int width;
+    int height;
+    // Estimated quality of the source, between 1 and 100, or 0 if unknown
+    int quality;
+    // True if chroma is stored at full resolution
+    boolean fullChroma;
+    // Number of bytes before the image data (metadata, thumbnails, tables)
+    long dataOffset;
+  }
+
+  /*
+   * Reads the header of a JPEG image, from a stream that supports mark() and
+   * reset(). Returns null if it can't be read without reading too much.
+   */
+  static Header readHeader(InputStream inputStream, int readLimit)
+      throws IOException {
+    inputStream.mark(readLimit);
+    try {
+      return parse(inputStream);
+    } catch (EOFException e) {
+      return null;
+    } finally {
+      inputStream.reset();
+    }
+  }
+
+  private static Header parse(InputStream in) throws IOException {
+    if (readByte(in) != 0xFF || readByte(in) != 0xD8) {
+      return null; // no SOI
+    }
+    Header header = new Header();
+    boolean sofFound = false;
+    long offset = 2;
+    while (true) {
+      if (readByte(in) != 0xFF) {
+        return null;
+      }
+      int marker = readByte(in);
+      offset += 2;
+      while (marker == 0xFF) { // fill bytes
+        marker = readByte(in);
+        offset++;
+      }
+      if (marker == MARKER_SOS || marker == MARKER_EOI) {
+        header.dataOffset = offset;
+        break;
+      }
+      int length = readShort(in) - 2;
+      if (length < 0) {
+        return null;
+      }
+      offset += 2 + length;
+      if (marker == MARKER_DQT) {
+        length = readQuantizationTables(in, length, header);
+      } else if (marker >= MARKER_SOF0 && marker <= MARKER_SOF2) {
+        length = readFrame(in, length, header);
+        sofFound = true;
+      }
+      skipFully(in, length);
+    }
+    return sofFound ? header : null;
+  }
+
+  /*
+   * Returns the number of bytes of the segment left to skip.
+   */
+  private static int readQuantizationTables(InputStream in, int length,
+      Header header) throws IOException {
+    while (length > 0) {
+      int info = readByte(in);
+      boolean sixteenBits = (info >> 4) != 0;
+      int id = info & 0x0F;
+      int[] table = new int[64];
+      for (int i = 0; i < 64; i++) {
+        table[i] = sixteenBits ? readShort(in) : readByte(in);
+      }
+      length -= 1 + (sixteenBits ? 128 : 64);
+      if (id == 0) {
+        header.quality = estimateQuality(table);
+      }
+    }
+    return Math.max(0, length);
+  }
+
+  private static int readFrame(InputStream in, int length, Header header)
+      throws IOException {
+    readByte(in); // precision
+    header.height = readShort(in);
+    header.width = readShort(in);
+    int components = readByte(in);
+    length -= 6;
+    header.fullChroma = components > 1;
+    for (int i = 0; i < components; i++) {
+      readByte(in); // component ID
+      int sampling = readByte(in);
+      readByte(in); // quantization table
+      length -= 3;
+      // Luma and chroma sampled the same
+      if (i == 0 && sampling != 0x11) {
+        header.fullChroma = false;
+      }
+    }
+    return Math.max(0, length);
+  }
+
+  /*
+   * Encoders based on IJG scale the standard table by S percent, where S is
+   * 5000 / quality below quality 50, and 200 - 2 * quality above.
+   */
+  static int estimateQuality(int[] table) {
+    double scale = 100.0 * sum(table) / STANDARD_LUMINANCE_SUM;
+    double quality = scale <= 100 ? (200 - scale) / 2 : 5000 / scale;
+    return (int) Math.max(1, Math.min(100, Math.round(quality)));
+  }
+
+  /*
+   * Returns the expected size of the recompressed image relative to the
+   * original file, or a negative number if it can't be estimated (e.g. the
+   * file size is unknown).
+   */
+  static double estimateRatio(Header header, long fileSize, int targetQuality,
+      int[] targetSize) {
+    if (header == null || header.quality <= 0 || header.width <= 0 ||
+        header.height <= 0 || fileSize <= header.dataOffset) {
+      return -1;
+    }
+    long pixels = (long) header.width * header.height;
+    double bytesPerPixel = (double) (fileSize - header.dataOffset) / pixels;
+    bytesPerPixel *= relativeSize(targetQuality) / relativeSize(header.quality);
+    if (header.fullChroma) {
+      bytesPerPixel *= CHROMA_SUBSAMPLING_GAIN;
+    }
+    long targetPixels = targetSize != null ?
+        (long) targetSize[0] * targetSize[1] : pixels;
+    return (header.dataOffset + bytesPerPixel * targetPixels) / fileSize;
+  }
+
+  private static double relativeSize(int quality) {
+    if (quality <= QUALITIES[0]) {
+      return RELATIVE_SIZES[0];
+    }
+    for (int i = 1; i < QUALITIES.length; i++) {
+      if (quality <= QUALITIES[i]) {
+        double t = (double) (quality - QUALITIES[i - 1]) /
+            (QUALITIES[i] - QUALITIES[i - 1]);
+        return RELATIVE_SIZES[i - 1] +
+            t * (RELATIVE_SIZES[i] - RELATIVE_SIZES[i - 1]);
+      }
+    }
+    return RELATIVE_SIZES[RELATIVE_SIZES.length - 1];
+  }
+
+  private static int sum(int[] table) {
+    int sum = 0;
+    for (int value : table) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  private static int readShort(InputStream in) throws IOException {
+    return (readByte(in) << 8) | readByte(in);
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        readByte(in);
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+}
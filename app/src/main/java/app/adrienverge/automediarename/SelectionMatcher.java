@@ -0,0 +1,325 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Finds the first selection rule whose pattern matches a file name.
+ *
+ * Rules are first bucketed by the file extension they can match, worked out
+ * from their literal suffix (e.g. "^20\d\d...\.jpg" only matches ".jpg"
+ * files). A single hash lookup of the extension gives the rules worth trying,
+ * so that e.g. a video is never tested against image rules, and files that no
+ * rule can match (thumbnails, ".nomedia", sidecars...) are dropped at once.
+ *
+ * Then, before running a regex, the name is checked against the rule's MIME
+ * type if any, and against the literal prefix and suffix that any match must
+ * have, which is much cheaper.
+ *
+ * Matchers are reused (one set per thread), so matching a name doesn't
+ * allocate anything.
+ */
+class SelectionMatcher {
+  // Characters with a special meaning in a regex, outside of classes
+  private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+  // Escapes followed by more characters, e.g. \x41 or \p{Lu}
+  private static final String LONG_ESCAPES = "xuc0pPNk";
+
+  private final Pattern[] patterns;
+  private final String[] literalPrefixes;
+  private final String[] literalSuffixes;
+  private final String[] mimeTypes;
+  // Rules to try for names with a given extension
+  private final ExtensionTable rulesByExtension;
+  // Rules to try for other names
+  private final int[] otherRules;
+  private final ThreadLocal<Matcher[]> matchers;
+
+  SelectionMatcher(List<Config.Selection> selections) {
+    int count = selections.size();
+    patterns = new Pattern[count];
+    literalPrefixes = new String[count];
+    literalSuffixes = new String[count];
+    mimeTypes = new String[count];
+    String[] extensions = new String[count];
+    Set<String> knownExtensions = new LinkedHashSet<>();
+    for (int i = 0; i < count; i++) {
+      patterns[i] = selections.get(i).pattern;
+      mimeTypes[i] = selections.get(i).mimeType;
+      String regex = patterns[i].pattern();
+      if (isSimple(patterns[i])) {
+        literalPrefixes[i] = getLiteralPrefix(regex);
+        literalSuffixes[i] = getLiteralSuffix(regex);
+      } else {
+        literalPrefixes[i] = "";
+        literalSuffixes[i] = "";
+      }
+      // If the literal suffix contains a dot, the extension of any matching
+      // name is what follows it.
+      int dot = literalSuffixes[i].lastIndexOf('.');
+      if (dot != -1) {
+        extensions[i] = literalSuffixes[i].substring(dot + 1);
+        knownExtensions.add(extensions[i]);
+      }
+    }
+
+    // Rules are tried in their original order, so rules without a known
+    // extension are merged into each bucket.
+    otherRules = getRules(extensions, null);
+    rulesByExtension = new ExtensionTable(knownExtensions.size());
+    for (String extension : knownExtensions) {
+      rulesByExtension.put(extension, getRules(extensions, extension));
+    }
+    matchers = new ThreadLocal<Matcher[]>() {
+      @Override
+      protected Matcher[] initialValue() {
+        Matcher[] m = new Matcher[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+          m[i] = patterns[i].matcher("");
+        }
+        return m;
+      }
+    };
+  }
+
+  private static int[] getRules(String[] extensions, String extension) {
+    List<Integer> rules = new ArrayList<>();
+    for (int i = 0; i < extensions.length; i++) {
+      if (extensions[i] == null || extensions[i].equals(extension)) {
+        rules.add(i);
+      }
+    }
+    int[] array = new int[rules.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = rules.get(i);
+    }
+    return array;
+  }
+
+  /*
+   * Returns the index of the first rule that matches the whole name (and the
+   * MIME type, for rules that have one), or -1.
+   */
+  int match(String name, String mimeType) {
+    int[] rules = rulesByExtension.get(name);
+    if (rules == null) {
+      rules = otherRules;
+    }
+    Matcher[] m = null;
+    for (int i : rules) {
+      if (!name.startsWith(literalPrefixes[i]) ||
+          !name.endsWith(literalSuffixes[i]) ||
+          !matchesMimeType(mimeTypes[i], mimeType)) {
+        continue;
+      }
+      if (m == null) {
+        m = matchers.get();
+      }
+      if (m[i].reset(name).matches()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * Rule MIME types can end with a wildcard, e.g. "image/*".
+   */
+  private static boolean matchesMimeType(String ruleMimeType, String mimeType) {
+    if (ruleMimeType == null) {
+      return true;
+    } else if (mimeType == null) {
+      return false;
+    } else if (ruleMimeType.endsWith("/*")) {
+      return mimeType.regionMatches(true, 0, ruleMimeType, 0,
+          ruleMimeType.length() - 1);
+    } else {
+      return mimeType.equalsIgnoreCase(ruleMimeType);
+    }
+  }
+
+  /*
+   * Literal extraction only handles plain patterns: no flags (which could
+   * make matching case-insensitive), no alternation and no quoting.
+   */
+  private static boolean isSimple(Pattern pattern) {
+    String regex = pattern.pattern();
+    return pattern.flags() == 0 && !regex.contains("(?") &&
+        !regex.contains("\\Q") && !hasUnescaped(regex, '|');
+  }
+
+  private static boolean hasUnescaped(String regex, char c) {
+    for (int i = 0; i < regex.length(); i++) {
+      char ch = regex.charAt(i);
+      if (ch == '\\') {
+        i++;
+      } else if (ch == c) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Returns the literal text any matching name must start with, e.g. "IMG_"
+   * for "^IMG_\d+\.jpg$".
+   */
+  static String getLiteralPrefix(String regex) {
+    StringBuilder prefix = new StringBuilder();
+    int i = regex.startsWith("^") ? 1 : 0;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      int next;
+      if (c == '\\') {
+        if (i + 1 >= regex.length() ||
+            Character.isLetterOrDigit(regex.charAt(i + 1))) {
+          break; // e.g. \d
+        }
+        c = regex.charAt(i + 1);
+        next = i + 2;
+      } else if (METACHARACTERS.indexOf(c) != -1) {
+        break;
+      } else {
+        next = i + 1;
+      }
+      // A quantified character is not mandatory
+      if (next < regex.length() && "?*+{".indexOf(regex.charAt(next)) != -1) {
+        break;
+      }
+      prefix.append(c);
+      i = next;
+    }
+    return prefix.toString();
+  }
+
+  /*
+   * Returns the literal text any matching name must end with, e.g. ".jpg" for
+   * "^IMG_\d+\.jpg$".
+   */
+  static String getLiteralSuffix(String regex) {
+    if (hasLongEscape(regex)) {
+      // Read backwards, their trailing characters look like literal text
+      return "";
+    }
+    int end = regex.length();
+    if (end > 0 && regex.charAt(end - 1) == '$' && !isEscaped(regex, end - 1)) {
+      end--;
+    }
+    StringBuilder suffix = new StringBuilder();
+    int i = end - 1;
+    while (i >= 0) {
+      char c = regex.charAt(i);
+      if (isEscaped(regex, i)) {
+        if (Character.isLetterOrDigit(c)) {
+          break; // e.g. \d
+        }
+        suffix.append(c);
+        i -= 2;
+      } else if (c == '\\' || METACHARACTERS.indexOf(c) != -1) {
+        break;
+      } else {
+        suffix.append(c);
+        i--;
+      }
+    }
+    return suffix.reverse().toString();
+  }
+
+  private static boolean hasLongEscape(String regex) {
+    for (int i = 0; i + 1 < regex.length(); i++) {
+      if (regex.charAt(i) == '\\') {
+        if (LONG_ESCAPES.indexOf(regex.charAt(i + 1)) != -1) {
+          return true;
+        }
+        i++;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isEscaped(String regex, int index) {
+    int backslashes = 0;
+    for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+      backslashes++;
+    }
+    return backslashes % 2 == 1;
+  }
+
+  /*
+   * Open-addressing hash table from file extensions to rules, looked up with
+   * the extension of a name without extracting it (so without allocating).
+   */
+  private static class ExtensionTable {
+    private final String[] keys;
+    private final int[][] values;
+
+    ExtensionTable(int size) {
+      int capacity = 4;
+      while (capacity < 2 * size) {
+        capacity *= 2;
+      }
+      keys = new String[capacity];
+      values = new int[capacity][];
+    }
+
+    void put(String extension, int[] rules) {
+      int slot = hash(extension, 0) & (keys.length - 1);
+      while (keys[slot] != null) {
+        slot = (slot + 1) & (keys.length - 1);
+      }
+      keys[slot] = extension;
+      values[slot] = rules;
+    }
+
+    /*
+     * Returns the rules for the extension of this name, or null if no rule
+     * is specific to it.
+     */
+    int[] get(String name) {
+      int start = name.lastIndexOf('.') + 1;
+      if (start == 0) {
+        return null;
+      }
+      int length = name.length() - start;
+      int slot = hash(name, start) & (keys.length - 1);
+      while (keys[slot] != null) {
+        if (keys[slot].length() == length &&
+            name.regionMatches(start, keys[slot], 0, length)) {
+          return values[slot];
+        }
+        slot = (slot + 1) & (keys.length - 1);
+      }
+      return null;
+    }
+
+    // Same as String.hashCode(), from start to the end
+    private static int hash(String s, int start) {
+      int hash = 0;
+      for (int i = start; i < s.length(); i++) {
+        hash = 31 * hash + s.charAt(i);
+      }
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Named counters collected during one run of the worker, e.g. how many
+ * documents were skipped thanks to the index. They are logged at the end of
+ * the run, so it's easy to see where time and I/O are spent.
+ */
+class Stats {
+  private final Map<String, AtomicLong> counters =
+      new ConcurrentSkipListMap<>();
+
+  void increment(String name) {
+    add(name, 1);
+  }
+
+  void add(String name, long delta) {
+    counters.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+  }
+
+  /*
+   * Keeps the highest value seen, e.g. for the slowest call.
+   */
+  void max(String name, long value) {
+    counters.computeIfAbsent(name, k -> new AtomicLong())
+        .accumulateAndGet(value, Math::max);
+  }
+
+  long get(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder stringBuilder = new StringBuilder();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      if (stringBuilder.length() > 0) {
+        stringBuilder.append(", ");
+      }
+      stringBuilder.append(entry.getKey()).append(": ")
+          .append(entry.getValue().get());
+    }
+    return stringBuilder.toString();
+  }
+}
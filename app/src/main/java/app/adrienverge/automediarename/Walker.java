@@ -0,0 +1,312 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Base class for traversal backends. A walker looks for files under the media
+ * directory, and feeds those matching a selection rule into a bounded queue,
+ * consumed by the worker.
+ *
+ * For each directory, a high-water mark records the most recent modification
+ * date up to which all files were processed. Next runs only look at files
+ * above it (minus a configurable overlap, for files that show up late with an
+ * old modification date).
+ */
+abstract class Walker {
+  protected static final String TAG = "automediarename";
+  // Put in the queue once the whole tree was walked
+  private static final Candidate END =
+      new Candidate(null, null, null, null, 0, 0, null, null);
+
+  protected Config config;
+  protected DocumentIndex index;
+  protected Stats stats;
+  private List<Config.Selection> selections;
+  private SelectionMatcher matcher;
+  protected long minimumTimestampFilterInMillis;
+  protected long maximumTimestampFilterInMillis;
+  protected long watermarkOverlapInMillis;
+  // If set, only these directories are listed, not their subdirectories
+  protected Set<String> targetDirectories;
+
+  private BlockingQueue<Candidate> queue;
+  private volatile boolean done = false;
+
+  Walker(Context context, Stats stats, long minimumTimestampFilterInMillis,
+      long maximumTimestampFilterInMillis) {
+    this.config = Config.getInstance(context);
+    this.index = DocumentIndex.getInstance(context);
+    this.stats = stats;
+    this.minimumTimestampFilterInMillis = minimumTimestampFilterInMillis;
+    this.maximumTimestampFilterInMillis = maximumTimestampFilterInMillis;
+    this.watermarkOverlapInMillis = 1000L * config.getWatermarkOverlap();
+    this.selections = config.getSelections();
+    this.matcher = new SelectionMatcher(selections);
+
+    this.queue = new ArrayBlockingQueue<>(
+        Math.max(1, config.getTraversalQueueDepth()));
+  }
+
+  /*
+   * Restricts the walk to some directories, identified by their document ID.
+   * Must be called before start().
+   */
+  void setTargetDirectories(Set<String> targetDirectories) {
+    this.targetDirectories = targetDirectories;
+  }
+
+  abstract void start();
+
+  abstract void stop();
+
+  /*
+   * Returns the next file to process, or null if none was found in time or
+   * once the whole tree was walked (see isDone()).
+   */
+  Candidate poll(long timeoutInMillis) throws InterruptedException {
+    Candidate candidate = queue.poll(timeoutInMillis, TimeUnit.MILLISECONDS);
+    if (candidate == END) {
+      done = true;
+      stop();
+      return null;
+    }
+    return candidate;
+  }
+
+  boolean isDone() {
+    return done;
+  }
+
+  protected void put(Candidate candidate) throws InterruptedException {
+    queue.put(candidate);
+  }
+
+  /*
+   * Must be called by implementations once the whole tree was walked.
+   */
+  protected void finish() {
+    try {
+      queue.put(END);
+    } catch (InterruptedException e) {
+      // The walker was stopped, remaining candidates don't matter anymore
+      queue.clear();
+      queue.offer(END);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /*
+   * Looks at one file of a directory, and queues it for processing if it
+   * matches a selection rule.
+   */
+  protected void visitFile(DirectoryState state, String docId, String name,
+      String mimeType, long lastModified, long size, Path path)
+      throws InterruptedException {
+    if (isTooRecent(lastModified)) {
+      // It will be processed during a future run
+      state.complete = false;
+      return;
+    }
+    state.seen(lastModified);
+
+    Config.Selection selection =
+        select(docId, name, mimeType, lastModified, state.minimumTimestamp);
+    if (selection == null) {
+      return;
+    }
+    String newName = selection.prefix + name;
+    if (!newName.equals(name) && isNameTaken(state, newName, path)) {
+      // Providers would pick another name, e.g. "IMG_1.jpg (1)", that may
+      // match again during next run: leave the file as it is.
+      Log.i(TAG, "Not renaming " + docId + ": " + newName + " exists");
+      stats.increment("rename_conflicts");
+      index.put(docId, name, mimeType, lastModified,
+          DocumentIndex.DECISION_NONE);
+      return;
+    }
+    state.pending.incrementAndGet();
+    put(new Candidate(docId, name, newName, mimeType, lastModified, size,
+          path, state));
+  }
+
+  /*
+   * Returns true if a file of this directory already has the new name, or if
+   * another file will be renamed to it during this run. Otherwise, the name
+   * is reserved.
+   */
+  protected boolean isNameTaken(DirectoryState state, String newName,
+      Path path) {
+    return !state.claimName(newName);
+  }
+
+  /*
+   * Returns true if the file was modified too recently to be touched, and
+   * should be looked at during a future run.
+   */
+  protected boolean isTooRecent(long lastModified) {
+    return lastModified > maximumTimestampFilterInMillis;
+  }
+
+  /*
+   * Returns the selection rule that applies to this file, or null if the file
+   * should be left untouched.
+   */
+  private Config.Selection select(String docId, String name, String mimeType,
+      long lastModified, long minimumTimestamp) {
+    if (lastModified < minimumTimestamp) {
+      stats.increment("rows_below_watermark");
+      return null;
+    } else if (name.endsWith(Worker.FILE_TEMP_SUFFIX) ||
+        name.endsWith(Worker.FILE_BACKUP_SUFFIX)) {
+      return null;
+    } else if (!index.mightBeKnown(docId, name)) {
+      // Never seen: no need to look it up in the index
+      stats.increment("rows_unknown");
+    } else if (index.isUnchanged(docId, name, lastModified)) {
+      // We already took a decision for this document last time, and it
+      // didn't change since.
+      stats.increment("rows_skipped");
+      return null;
+    }
+
+    stats.increment("rows_processed");
+    // Only the first matching rule applies, so that we don't apply two rules
+    // on the same file
+    int rule = matcher.match(name, mimeType);
+    if (rule >= 0) {
+      Log.d(TAG, "Found matching document: docId: " + docId +
+          ", name: " + name + ", mimeType: " + mimeType +
+          ", lastModified: " + Long.toString(lastModified));
+      return selections.get(rule);
+    }
+    index.put(docId, name, mimeType, lastModified,
+        DocumentIndex.DECISION_NONE);
+    return null;
+  }
+
+  /*
+   * Called once all files of a directory were processed (or the walk was
+   * aborted).
+   */
+  protected void directoryDone(DirectoryState state) {}
+
+  /*
+   * Files of a directory are processed asynchronously by the worker: the
+   * directory fingerprint and high-water mark are stored only once all of
+   * them were processed.
+   */
+  protected class DirectoryState implements Candidate.Callback {
+    final String docId;
+    // Can be null for backends that don't use fingerprints
+    final DocumentIndex.Fingerprint fingerprint;
+    // Files modified before this date are not looked at
+    final long minimumTimestamp;
+    // One for the listing itself, plus one per file queued for processing
+    final AtomicInteger pending = new AtomicInteger(1);
+    volatile boolean complete = true;
+    // Set if the walk was stopped before all files were visited
+    volatile boolean aborted = false;
+    private long maxSeenLastModified;
+    private long minFailedLastModified = Long.MAX_VALUE;
+    // Names of files and subdirectories, if the backend gave the whole
+    // listing, plus new names given during this run
+    private final Set<String> names = new HashSet<>();
+
+    DirectoryState(String docId, DocumentIndex.Fingerprint fingerprint) {
+      this.docId = docId;
+      this.fingerprint = fingerprint;
+      long watermark = index.getWatermark(docId);
+      this.maxSeenLastModified = watermark;
+      this.minimumTimestamp = Math.max(minimumTimestampFilterInMillis,
+          watermark - watermarkOverlapInMillis);
+    }
+
+    synchronized void seen(long lastModified) {
+      maxSeenLastModified = Math.max(maxSeenLastModified, lastModified);
+    }
+
+    /*
+     * Must be called before visiting files, with the names of all entries of
+     * the directory, so that renames never target an existing name.
+     */
+    synchronized void addNames(Iterable<String> entries) {
+      for (String name : entries) {
+        names.add(name);
+      }
+    }
+
+    synchronized boolean claimName(String newName) {
+      return names.add(newName);
+    }
+
+    /*
+     * Must be called once all files of the directory were visited.
+     */
+    void listed() {
+      release();
+    }
+
+    @Override
+    public void done(Candidate candidate, boolean success) {
+      if (!success) {
+        complete = false;
+        synchronized (this) {
+          minFailedLastModified =
+              Math.min(minFailedLastModified, candidate.lastModified);
+        }
+      }
+      release();
+    }
+
+    private void release() {
+      if (pending.decrementAndGet() != 0) {
+        return;
+      }
+      if (!aborted) {
+        if (fingerprint != null) {
+          if (complete) {
+            index.putDirectory(docId, fingerprint);
+          } else {
+            index.removeDirectory(docId);
+          }
+        }
+        // Files that failed must be looked at again next time
+        long watermark;
+        synchronized (this) {
+          watermark = Math.min(maxSeenLastModified, minFailedLastModified - 1);
+        }
+        if (watermark > 0) {
+          index.putWatermark(docId, watermark);
+        }
+      }
+      directoryDone(this);
+    }
+  }
+}
@@ -17,36 +17,44 @@
 
 package app.adrienverge.automediarename;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.media.MediaScannerConnection;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.os.storage.StorageManager;
 import android.os.storage.StorageVolume;
 import android.provider.DocumentsContract;
-import android.provider.DocumentsContract.Document;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
@@ -59,12 +67,46 @@ public class Worker extends androidx.work.Worker {
 
   private static final String TAG = "automediarename";
   private static final int NOTIFICATION_ID = 1;
-  private static final String FILE_TEMP_SUFFIX = "_automediarename_temp.jpg";
-  private static final String FILE_BACKUP_SUFFIX = "_automediarename_backup.jpg";
+  static final String FILE_TEMP_SUFFIX = "_automediarename_temp.jpg";
+  static final String FILE_BACKUP_SUFFIX = "_automediarename_backup.jpg";
+  // Files modified more recently than this are left for a future run
+  static final int QUIET_PERIOD_IN_MINUTES = 10;
+  // How often to check whether the run should stop, while waiting for files
+  private static final long CHECKPOINT_INTERVAL_IN_MILLIS = 1000;
+  private static final int READ_BUFFER_SIZE = 65536;
+  // How much of the original file can be read for EXIF metadata and rewound
+  private static final int EXIF_MARK_LIMIT = 512 * 1024;
+  // Images are not recompressed if their expected ratio is above the
+  // overwrite ratio by this much. The average estimation error is logged at
+  // the end of each run.
+  private static final double PREDICTIVE_SKIP_MARGIN = 0.15;
+  // Outcomes of moveFile()
+  private static final int MOVE_DONE = 0;
+  private static final int MOVE_CONFLICT = 1;
+  private static final int MOVE_FAILED = 2;
+  // Only one run at a time: periodic, one-shot and triggered runs share the
+  // document index and the journal, and would process the same files.
+  private static final ReentrantLock RUN_LOCK = new ReentrantLock();
 
   private Context context;
   private ContentResolver contentResolver;
   private Config config;
+  private DocumentIndex index;
+  private Journal journal;
+  private Stats stats;
+  private DocumentRenamer renamer;
+  // Buffers for compressed images, reused from one file to the next
+  private BufferPool buffers;
+  private JpegDecoder decoder;
+  // Set if the app has full path access to the media directory
+  private Path rootPath;
+  private String rootDocId;
+  // Files moved on the filesystem, that MediaStore must know about
+  private List<String> movedPaths = new ArrayList<>();
+  // Set if the run stopped before all files were processed
+  private boolean paused;
+  // Identifies this run in the journal
+  private String runId;
 
   private long minimumTimestampFilterInMillis;
   private long maximumTimestampFilterInMillis;
@@ -75,43 +117,220 @@ public class Worker extends androidx.work.Worker {
     this.context = context;
     this.contentResolver = context.getContentResolver();
     this.config = Config.getInstance(context);
+    this.index = DocumentIndex.getInstance(context);
+    this.journal = Journal.getInstance(context);
+  }
+
+  @Override
+  public void onStopped() {
+    // What was done so far must survive, for next run to resume from there
+    index.flushJournal();
   }
 
   @NonNull
   @Override
   public Result doWork() {
+    boolean chained = getTags().contains(ContentTrigger.WORK_NAME);
+    paused = false;
+    try {
+      if (!lockRun()) {
+        return Result.retry();
+      }
+      try {
+        runOnce();
+      } finally {
+        RUN_LOCK.unlock();
+      }
+    } catch (RuntimeException | Error e) {
+      if (!chained) {
+        throw e;
+      }
+      // Failing would also fail the next run of the chain, appended to this
+      // one, and turn event mode off.
+      Log.e(TAG, "Worker failed: " + e.toString());
+      Logger.getInstance(context).addLine("Worker failed: " + e.toString());
+      paused = false;
+    } finally {
+      // Saves are deferred, and the process may be killed once this returns
+      config.flush();
+      if (config.getEventWorkEnabled()) {
+        ContentTrigger.schedule(context, chained,
+            chained && paused && !isStopped());
+      }
+    }
+
+    // Directories not fully processed kept their high-water mark: next run
+    // picks up from there. A run of the trigger chain scheduled its
+    // continuation instead.
+    return paused && !chained ? Result.retry() : Result.success();
+  }
+
+  /*
+   * Waits until no other run is going. Returns false if this one was stopped
+   * in the meantime.
+   */
+  private boolean lockRun() {
+    try {
+      if (RUN_LOCK.tryLock()) {
+        return true;
+      }
+      Logger.getInstance(context).addLine(
+          "Waiting for another run to finish…");
+      while (!RUN_LOCK.tryLock(CHECKPOINT_INTERVAL_IN_MILLIS,
+            TimeUnit.MILLISECONDS)) {
+        if (isStopped()) {
+          return false;
+        }
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void runOnce() {
     Log.i(TAG, "Starting work…");
     sendNotification("Auto Media Rename", "Looking for new images…");
     Logger.getInstance(context).addLine("Starting worker…");
 
     Uri uri = Uri.parse(config.getMediaDirectory());
+    stats = new Stats();
+    int rulesVersion = config.getSelectionsVersion();
+    index.validate(getRulesKey());
+    if (config.getClearWatermarks()) {
+      // Durable in the journal before the flag is reset
+      index.clearWatermarks();
+      config.setClearWatermarks(false);
+      config.save();
+    }
     minimumTimestampFilterInMillis = config.getMinimumTimestamp();
     // Set maximumTimestampFilterInMillis in the past to make sure we don't
     // touch a picture that has just been saved and is potentially still beeing
     // processed by another app.
     Calendar calendar = Calendar.getInstance();
     calendar.setTime(new Date());
-    calendar.add(Calendar.MINUTE, -10);
+    calendar.add(Calendar.MINUTE, -QUIET_PERIOD_IN_MINUTES);
     maximumTimestampFilterInMillis = calendar.getTimeInMillis();
 
-    int noProcessedFiles = traverseDirectoryEntries(uri);
+    // When started because some media changed, only look at their directories
+    List<Uri> changedUris = getTriggeredContentUris();
+    boolean triggered = !changedUris.isEmpty() ||
+        !getTriggeredContentAuthorities().isEmpty();
+    Set<String> targetDirectories = null;
+    if (triggered) {
+      targetDirectories = ContentTrigger.getDirtyDirectories(context,
+          changedUris, DocumentsContract.getTreeDocumentId(uri));
+      Logger.getInstance(context).addLine("Worker triggered by " +
+          changedUris.size() + " changed media, " +
+          (targetDirectories == null ? "walking the whole tree" :
+           "listing " + targetDirectories.size() + " directories"));
+    }
+
+    renamer = new DocumentRenamer(contentResolver, stats,
+        config.getRenameBatchSize());
+    rootDocId = DocumentsContract.getTreeDocumentId(uri);
+    runId = getId().toString();
+    journal.startRun(runId);
+    int noProcessedFiles;
+    try {
+      // Only sequences of runs that are over: another work may be running
+      repairUnfinished(uri);
+      rootPath = null;
+      if (!"documents".equals(config.getTraversalBackend()) &&
+          FileUtil.canUseFullPaths(config.getMediaDirectory(), context)) {
+        rootPath = Paths.get(
+            FileUtil.rootUriToFullPath(config.getMediaDirectory(), context));
+      }
+      Walker walker = createWalker(uri);
+      walker.setTargetDirectories(targetDirectories);
+      noProcessedFiles = processCandidates(uri, walker);
+    } finally {
+      journal.endRun(runId);
+    }
     Logger.getInstance(context).addLine("Worker found " + noProcessedFiles + " images to process.");
+    if (paused) {
+      Logger.getInstance(context).addLine(isStopped() ?
+          "Worker was stopped, remaining files are left for next run." :
+          "Worker ran out of budget, remaining files are left for next run.");
+    }
+    Logger.getInstance(context).addLine("Worker skipped " +
+        (stats.get("rows_skipped") + stats.get("rows_below_watermark")) +
+        " already known documents and looked at " +
+        stats.get("rows_processed") + " others.");
+    Logger.getInstance(context).addLine("Worker skipped " +
+        stats.get("directories_skipped") + " unchanged directories and listed " +
+        stats.get("directories_listed") + " others.");
+    if (stats.get("cursor_queries") > 0) {
+      Logger.getInstance(context).addLine("Worker ran " +
+          stats.get("cursor_queries") + " provider queries, returning " +
+          stats.get("cursor_rows") + " rows in " +
+          stats.get("cursor_window_fills") + " cursor window fills.");
+    }
+    if (stats.get("rename_conflicts") > 0) {
+      Logger.getInstance(context).addLine("Worker left " +
+          stats.get("rename_conflicts") +
+          " files untouched, because their new name was already taken.");
+    }
+    if (stats.get("source_files") > 0) {
+      Logger.getInstance(context).addLine("Worker read " +
+          stats.get("source_bytes_read") / stats.get("source_files") +
+          " bytes per compressed file on average, opening " +
+          stats.get("source_opens") + " streams for " +
+          stats.get("source_files") + " files.");
+    }
+    if (stats.get("decode_resized") > 0) {
+      Logger.getInstance(context).addLine("Worker scaled down " +
+          stats.get("decode_resized") + " large images (" +
+          stats.get("decode_banded") + " in bands, " +
+          stats.get("decode_rgb565") + " in RGB_565).");
+    }
+    if (stats.get("estimate_skipped") > 0 || stats.get("estimate_checked") > 0) {
+      Logger.getInstance(context).addLine("Worker skipped " +
+          stats.get("estimate_skipped") + " images unlikely to compress " +
+          "enough. On " + stats.get("estimate_checked") + " others, " +
+          "estimations were off by " + (stats.get("estimate_checked") == 0 ?
+            0 : stats.get("estimate_error_percent") /
+            stats.get("estimate_checked")) +
+          " points on average.");
+    }
+    if (stats.get("bitmap_reuses") > 0) {
+      Logger.getInstance(context).addLine("Worker reused bitmaps " +
+          stats.get("bitmap_reuses") + " times, and allocated " +
+          stats.get("bitmap_allocations") + " (" +
+          stats.get("bitmap_evictions") + " evicted).");
+    }
+    if (stats.get("memory_bitmap_max_bytes") > 0) {
+      Logger.getInstance(context).addLine("Worker used up to " +
+          stats.get("memory_heap_max_bytes") / (1024 * 1024) + " MB of heap " +
+          "while compressing (largest bitmap: " +
+          stats.get("memory_bitmap_max_bytes") / (1024 * 1024) + " MB, " +
+          "largest buffer: " +
+          stats.get("memory_buffer_max_bytes") / (1024 * 1024) + " MB).");
+    }
+    long renameCalls = stats.get("rename_calls") +
+        stats.get("rename_batch_calls");
+    if (renameCalls > 0) {
+      Logger.getInstance(context).addLine("Worker spent " +
+          (stats.get("rename_millis") + stats.get("rename_batch_millis")) +
+          " ms in " + renameCalls + " rename calls (slowest: " +
+          Math.max(stats.get("rename_max_millis"),
+            stats.get("rename_batch_max_millis")) + " ms).");
+    }
+    Log.i(TAG, "Stats: " + stats);
+    if (config.getSelectionsVersion() != rulesVersion) {
+      // Decisions taken during this run may follow the old rules
+      Logger.getInstance(context).addLine(
+          "Selection rules changed while running, forgetting decisions");
+      index.validate(getRulesKey());
+    }
+    index.save();
 
     Log.i(TAG, "Finished work.");
     removeNotification();
 
-    // Now that we've processed all files, reset the minimum timestamp, to avoid
-    // processing old files on next run. But let a 24-hour window, in case of
-    // time zone shift.
-    calendar.setTime(new Date());
-    calendar.add(Calendar.DAY_OF_MONTH, -1);
-    long newMinimumTimestampFilterInMillis = calendar.getTimeInMillis();
-    newMinimumTimestampFilterInMillis = Math.max(
-        newMinimumTimestampFilterInMillis, minimumTimestampFilterInMillis);
-    config.setMinimumTimestamp(newMinimumTimestampFilterInMillis);
-    config.save();
-
-    return Result.success();
+    // There is no need to move the minimum timestamp forward: each directory
+    // has its own high-water mark, saved in the index.
   }
 
   private void sendNotification(String title, String message) {
@@ -138,131 +357,363 @@ public class Worker extends androidx.work.Worker {
     notificationManager.cancel(NOTIFICATION_ID);
   }
 
-  private int traverseDirectoryEntries(Uri rootUri) {
+  /*
+   * When the app has full path access, walk the filesystem directly instead
+   * of going through the DocumentsProvider.
+   */
+  private Walker createWalker(Uri rootUri) {
+    String backend = config.getTraversalBackend();
+    if ("auto".equals(backend) || "filesystem".equals(backend)) {
+      if (rootPath != null) {
+        Log.i(TAG, "Walking the filesystem directly");
+        return new FileSystemWalker(context, rootPath, rootDocId, stats,
+            minimumTimestampFilterInMillis, maximumTimestampFilterInMillis);
+      } else if ("filesystem".equals(backend)) {
+        Logger.getInstance(context).addLine(
+            "No direct access to files, falling back to the documents provider");
+      }
+    }
+    if ("auto".equals(backend) || "mediastore".equals(backend)) {
+      if (MediaStoreWalker.canWalk(context, rootUri)) {
+        Log.i(TAG, "Querying MediaStore");
+        return new MediaStoreWalker(context, rootUri, stats,
+            minimumTimestampFilterInMillis, maximumTimestampFilterInMillis);
+      } else if ("mediastore".equals(backend)) {
+        Logger.getInstance(context).addLine(
+            "Media directory not known to MediaStore, falling back to the documents provider");
+      }
+    }
+    return new DocumentTreeWalker(context, rootUri, stats,
+        minimumTimestampFilterInMillis, maximumTimestampFilterInMillis);
+  }
+
+  /*
+   * Files found by the walker go through a pipeline of stages: read,
+   * recompress, write and rename. Each stage has its own threads, so that
+   * listing, compression and writing overlap.
+   */
+  private int processCandidates(Uri rootUri, Walker walker) {
     int ret = 0;
+    paused = false;
+    long timeBudget = 1000L * config.getWorkerTimeBudget();
+    long deadline = timeBudget > 0 ?
+        SystemClock.elapsedRealtime() + timeBudget : Long.MAX_VALUE;
+    int fileBudget = config.getWorkerFileBudget();
 
-    Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
-        rootUri, DocumentsContract.getTreeDocumentId(rootUri));
-
-    // Keep track of our directory hierarchy
-    List<Uri> dirNodes = new LinkedList<>();
-    dirNodes.add(childrenUri);
-
-    while (!dirNodes.isEmpty()) {
-      childrenUri = dirNodes.remove(0); // get the item from top
-
-      final String[] projection = {
-          Document.COLUMN_DOCUMENT_ID, Document.COLUMN_DISPLAY_NAME,
-          Document.COLUMN_MIME_TYPE,
-          Document.COLUMN_LAST_MODIFIED};
-      Cursor c = contentResolver.query(
-          childrenUri, projection,
-          // Here, it would be great for performance to filter the SQL selection
-          // based on MIME types and last modified dates, e.g.
-          //     Document.COLUMN_LAST_MODIFIED + " > ?",
-          // but unfortunately it's not possible to filter with
-          // DocumentsProvider: https://stackoverflow.com/a/61214849
-          // So we need to get a big batch of results and filter them ourselves.
-          null, null, null);
+    int queueDepth = config.getPipelineQueueDepth();
+    // One bitmap kept per compress thread, plus one for images decoded then
+    // scaled down
+    decoder = new JpegDecoder(context, stats,
+        config.getJpegCompressionMaxDimension(),
+        config.getPipelineThreads("compress") + 1);
+    // Enough for all files between the compress and write stages
+    buffers = new BufferPool(config.getPipelineThreads("compress") +
+        queueDepth + config.getPipelineThreads("write"));
+    Pipeline<Job> pipeline = new Pipeline<>(job -> {
+      // Deferred jobs are done once their batch is renamed
+      if (!job.deferred) {
+        job.candidate.done(job.success);
+      }
+    });
+    pipeline.addStage("read", config.getPipelineThreads("read"), queueDepth,
+        this::readOriginal);
+    pipeline.addStage("compress", config.getPipelineThreads("compress"),
+        queueDepth, this::compress);
+    pipeline.addStage("write", config.getPipelineThreads("write"), queueDepth,
+        this::writeCompressed);
+    pipeline.addStage("rename", config.getPipelineThreads("rename"),
+        queueDepth, this::rename);
 
-      try {
-        while (c.moveToNext()) {
-          final String docId = c.getString(0);
-          final String name = c.getString(1);
-          final String mimeType = c.getString(2);
-          final long lastModified = c.getLong(3);
-          if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
-            dirNodes.add(DocumentsContract.buildChildDocumentsUriUsingTree(
-                rootUri, docId));
-          } else if (lastModified < minimumTimestampFilterInMillis) {
-            continue;
-          } else if (lastModified > maximumTimestampFilterInMillis) {
-            continue;
-          } else if (name.endsWith(FILE_TEMP_SUFFIX) ||
-              name.endsWith(FILE_BACKUP_SUFFIX)) {
-            continue;
-          } else {
-            for (Config.Selection selection : config.getSelections()) {
-              if (selection.pattern.matcher(name).matches()) {
-                Log.d(TAG, "Found matching document: docId: " + docId +
-                    ", name: " + name + ", mimeType: " + mimeType +
-                    ", lastModified: " + Long.toString(lastModified));
-                String newName = selection.prefix + name;
-                processFile(rootUri, docId, name, newName, mimeType);
-                ret++;
-                break; // make sure we don't apply two rules on the same file
-              }
-            }
-          }
+    pipeline.start();
+    walker.start();
+    try {
+      while (!walker.isDone()) {
+        // Checkpoint between files. A file taken from the walker but not
+        // submitted is not done, so its directory is looked at again.
+        if (isStopped() || SystemClock.elapsedRealtime() > deadline ||
+            (fileBudget > 0 && ret >= fileBudget)) {
+          paused = true;
+          walker.stop();
+          break;
         }
-      } finally {
-        if (c != null) {
-          try {
-            c.close();
-          } catch (RuntimeException re) {
-            throw re;
-          } catch (Exception ignore) {
-            // ignore exception
-          }
+        Candidate candidate = walker.poll(CHECKPOINT_INTERVAL_IN_MILLIS);
+        if (candidate != null) {
+          pipeline.submit(new Job(rootUri, candidate));
+          ret++;
         }
       }
+      if (isStopped()) {
+        // There is little time left: interrupted jobs are repaired next run,
+        // thanks to the journal, once their steps are over. Renames already
+        // deferred by the rename step are still sent.
+        pipeline.stop();
+        pipeline.join();
+        renamer.flush();
+      } else {
+        // Let files already in the pipeline finish
+        pipeline.finish();
+        renamer.flush();
+      }
+    } catch (InterruptedException e) {
+      walker.stop();
+      pipeline.stop();
+      Thread.currentThread().interrupt();
+    } finally {
+      decoder.clear();
+      scanMovedFiles();
     }
 
     return ret;
   }
 
-  private void processFile(Uri rootUri, String docId, String name,
-      String newName, String mimeType) {
-    Uri originalUri = DocumentsContract.buildDocumentUriUsingTree(rootUri, docId);
-    Uri compressedUri = null;
+  /*
+   * Tells MediaStore about all files moved during the run, in one go.
+   */
+  private void scanMovedFiles() {
+    String[] paths;
+    synchronized (movedPaths) {
+      if (movedPaths.isEmpty()) {
+        return;
+      }
+      paths = movedPaths.toArray(new String[0]);
+      movedPaths.clear();
+    }
+    MediaScannerConnection.scanFile(context, paths, null, null);
+  }
+
+  /*
+   * Identifies the current selection rules, so that the document index can be
+   * invalidated when they change.
+   */
+  private String getRulesKey() {
+    StringBuilder stringBuilder = new StringBuilder();
+    for (Config.Selection selection : config.getSelections()) {
+      stringBuilder.append(selection.pattern.pattern()).append('\0')
+          .append(selection.prefix).append('\0');
+      if (selection.mimeType != null) {
+        // Not part of the key otherwise, so that older indexes stay valid
+        stringBuilder.append(selection.mimeType).append('\1');
+      }
+    }
+    return Integer.toHexString(stringBuilder.toString().hashCode());
+  }
 
-    if ("image/jpeg".equals(mimeType)) {
-      byte[] compressedJpeg = compressJpegFile(originalUri, name);
+  /*
+   * Pipeline step: open the original JPEG file and read its EXIF metadata.
+   * The file is opened only once: the stream is rewound and kept open, for
+   * the image to be decoded from it at the next step.
+   */
+  private boolean readOriginal(Job job) {
+    if (!"image/jpeg".equals(job.candidate.mimeType)) {
+      return true;
+    }
 
-      if (compressedJpeg != null) {
-        OutputStream outputStream = null;
+    InputStream inputStream = null;
+    CountingInputStream counter = null;
+    try {
+      counter = openOriginal(job);
+      inputStream = new BufferedInputStream(counter, READ_BUFFER_SIZE);
+      // Metadata segments come first, and are usually much smaller than this
+      inputStream.mark(EXIF_MARK_LIMIT);
+      ExifInterface originalExif = new ExifInterface();
+      originalExif.readExif(inputStream);
+      try {
+        inputStream.reset();
+        job.header = QualityEstimator.readHeader(inputStream, EXIF_MARK_LIMIT);
+        // Needed to decode into a reused bitmap, and to decode large images
+        // without holding all their pixels
+        job.size = job.header != null ?
+            new int[] {job.header.width, job.header.height} :
+            JpegDecoder.readSize(inputStream, EXIF_MARK_LIMIT);
+      } catch (IOException e) {
+        // Too much was read to rewind: open the file again
+        inputStream.close();
+        stats.add("source_bytes_read", counter.getCount());
+        counter = openOriginal(job);
+        inputStream = new BufferedInputStream(counter, READ_BUFFER_SIZE);
+      }
+      job.exif = originalExif;
+      job.input = inputStream;
+      job.inputCounter = counter;
+      inputStream = null;
+    } catch (FileNotFoundException e) {
+      Log.e(TAG, "Cannot open " + job.originalUri);
+      e.printStackTrace();
+    } catch (IOException e) {
+      Log.e(TAG, "IOException: " + e.toString());
+      e.printStackTrace();
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {}
+      }
+    }
+
+    if (job.exif == null) {
+      Logger.getInstance(context).addLine(
+          "Error compressing \"" + job.candidate.name + "\"");
+    }
+    return true;
+  }
+
+  /*
+   * Opens the original file. If the walker didn't tell its size, it is taken
+   * from the file descriptor, so that the file doesn't have to be read to
+   * the end (e.g. the video of a motion photo) only to know it.
+   */
+  private CountingInputStream openOriginal(Job job) throws IOException {
+    AssetFileDescriptor fd =
+        contentResolver.openAssetFileDescriptor(job.originalUri, "r");
+    if (fd == null) {
+      throw new FileNotFoundException(job.originalUri.toString());
+    }
+    stats.increment("source_opens");
+    if (job.originalSize < 0) {
+      job.originalSize = fd.getLength();
+      if (job.originalSize == AssetFileDescriptor.UNKNOWN_LENGTH) {
+        job.originalSize = fd.getParcelFileDescriptor().getStatSize();
+      }
+    }
+    try {
+      // Closing the stream closes the file descriptor
+      return new CountingInputStream(fd.createInputStream());
+    } catch (IOException e) {
+      fd.close();
+      throw e;
+    }
+  }
+
+  /*
+   * Pipeline step: recompress the JPEG image, and keep the result only if it
+   * is small enough.
+   */
+  private boolean compress(Job job) {
+    if (job.exif == null) {
+      return true;
+    }
+
+    ExifInterface exif = job.exif;
+    InputStream input = job.input;
+    CountingInputStream counter = job.inputCounter;
+    job.exif = null;
+    job.input = null;
+    job.inputCounter = null;
+
+    double expectedRatio = QualityEstimator.estimateRatio(job.header,
+        job.originalSize, config.getJpegCompressionQuality(),
+        job.size == null ? null :
+        decoder.getTargetSize(job.size[0], job.size[1]));
+    if (config.getJpegCompressionPredictiveSkip() && expectedRatio >
+        config.getJpegCompressionOverwriteRatio() + PREDICTIVE_SKIP_MARGIN) {
+      Logger.getInstance(context).addLine(
+          "Compressing \"" + job.candidate.name + "\": ~" +
+          Math.round(100 * expectedRatio) + "% expected (quality " +
+          job.header.quality + ") → skip");
+      stats.increment("estimate_skipped");
+      job.estimateSkipped = true;
+      try {
+        input.close();
+      } catch (IOException e) {}
+      return true;
+    }
+
+    job.compressed = compressJpeg(job.originalUri, input, counter,
+        job.originalSize, job.size, exif, expectedRatio, job.candidate.name);
+    return true;
+  }
+
+  /*
+   * Pipeline step: write the compressed image to a temporary file, next to
+   * the original one.
+   */
+  private boolean writeCompressed(Job job) {
+    if (job.compressed == null) {
+      return true;
+    }
+
+    final Candidate candidate = job.candidate;
+    BufferPool.Buffer compressedJpeg = job.compressed;
+    job.compressed = null;
+    Uri compressedUri = null;
+    OutputStream outputStream = null;
+    // If the run is stopped from now on, next run must clean up
+    journal.begin(runId, candidate.docId, candidate.name, candidate.newName);
+    try {
+      Uri parentDocumentUri = DocumentsContract.buildDocumentUriUsingTree(
+          job.rootUri, new File(candidate.docId).getParent());
+      compressedUri = DocumentsContract.createDocument(contentResolver,
+          parentDocumentUri, candidate.mimeType,
+          candidate.name + FILE_TEMP_SUFFIX);
+      outputStream = contentResolver.openOutputStream(compressedUri);
+      compressedJpeg.writeTo(outputStream);
+      outputStream.close();
+      outputStream = null;
+      job.compressedUri = compressedUri;
+    } catch (FileNotFoundException e) {
+      e.printStackTrace();
+    } catch (IOException e) {
+      Log.e(TAG, "IOException: " + e.toString());
+      e.printStackTrace();
+    } finally {
+      if (outputStream != null) {
         try {
-          Uri parentDocumentUri = DocumentsContract.buildDocumentUriUsingTree(
-              rootUri, new File(docId).getParent());
-          compressedUri = DocumentsContract.createDocument(contentResolver,
-              parentDocumentUri, mimeType, name + FILE_TEMP_SUFFIX);
-          outputStream = contentResolver.openOutputStream(compressedUri);
-          outputStream.write(compressedJpeg, 0, compressedJpeg.length);
           outputStream.close();
-        } catch (FileNotFoundException e) {
-          e.printStackTrace();
-        } catch (IOException e) {
-          Log.e(TAG, "IOException: " + e.toString());
-          e.printStackTrace();
-        } finally {
-          if (outputStream != null) {
-            try {
-              outputStream.close();
-            } catch (IOException e) {}
-          }
-        }
+        } catch (IOException e) {}
+      }
+      buffers.release(compressedJpeg);
+    }
 
-        if (config.getJpegCompressionCopyTimestamps()) {
-          try {
-            // Thanks to this post: https://stackoverflow.com/a/66681306
-            Path originalPath = Paths.get(
-                FileUtil.getFullDocIdPathFromTreeUri(originalUri, context));
-            Path newPath = Paths.get(
-                FileUtil.getFullDocIdPathFromTreeUri(compressedUri, context));
-            BasicFileAttributes attrs = Files.readAttributes(
-              originalPath, BasicFileAttributes.class);
-            Files.getFileAttributeView(newPath, BasicFileAttributeView.class)
-              .setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(),
-                  attrs.creationTime());
-          } catch (Exception e) {
-            Log.e(TAG, "Exception: " + e.toString());
-            Logger.getInstance(context).addLine(
-                "Could not set file creation and last modification dates for " +
-                "\"" + name + "\": " + e.toString());
-          }
-        }
+    if (job.compressedUri == null) {
+      // Don't leave a half-written temporary file behind
+      if (compressedUri != null) {
+        try {
+          DocumentsContract.deleteDocument(contentResolver, compressedUri);
+        } catch (FileNotFoundException e) {}
+      }
+      journal.end(candidate.docId);
+      return true;
+    }
+
+    if (config.getJpegCompressionCopyTimestamps()) {
+      try {
+        // Thanks to this post: https://stackoverflow.com/a/66681306
+        Path originalPath = Paths.get(
+            FileUtil.getFullDocIdPathFromTreeUri(job.originalUri, context));
+        Path newPath = Paths.get(
+            FileUtil.getFullDocIdPathFromTreeUri(job.compressedUri, context));
+        BasicFileAttributes attrs = Files.readAttributes(
+          originalPath, BasicFileAttributes.class);
+        Files.getFileAttributeView(newPath, BasicFileAttributeView.class)
+          .setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(),
+              attrs.creationTime());
+      } catch (Exception e) {
+        Log.e(TAG, "Exception: " + e.toString());
+        Logger.getInstance(context).addLine(
+            "Could not set file creation and last modification dates for " +
+            "\"" + candidate.name + "\": " + e.toString());
       }
     }
+    return true;
+  }
+
+  /*
+   * Pipeline step: give the file its new name. Sets job.success to false if
+   * the file could not be processed and should be retried during next run.
+   */
+  private boolean rename(Job job) {
+    final Candidate candidate = job.candidate;
+    final String docId = candidate.docId;
+    final String name = candidate.name;
+    final String newName = candidate.newName;
+    final String mimeType = candidate.mimeType;
+    final long lastModified = candidate.lastModified;
+    final Uri originalUri = job.originalUri;
+    final Uri compressedUri = job.compressedUri;
+    // Tells apart files that were not even tried, in the index
+    final String renamedDecision = job.estimateSkipped ?
+        DocumentIndex.DECISION_ESTIMATED : DocumentIndex.DECISION_RENAMED;
+    int moved;
 
     // If the file wasn't recompressed or if the compressed version isn't small
     // enough, simply rename the file. Otherwise, make a backup of the original
@@ -273,67 +724,215 @@ public class Worker extends androidx.work.Worker {
     // - rm original_automediarename_backup.jpg
     if (compressedUri != null) {
         try {
-          Uri backupUri = DocumentsContract.renameDocument(contentResolver,
-              originalUri, name + FILE_BACKUP_SUFFIX);
-          DocumentsContract.renameDocument(contentResolver, compressedUri, newName);
+          Uri backupUri = renamer.rename(originalUri, name + FILE_BACKUP_SUFFIX);
+          journal.step(docId, Journal.STEP_BACKED_UP);
+          Uri newUri = renamer.rename(compressedUri, newName);
+          journal.step(docId, Journal.STEP_REPLACED);
           if (!config.getJpegCompressionKeepBackup()) {
             DocumentsContract.deleteDocument(contentResolver, backupUri);
           }
+          journal.end(docId);
+          // The new file has a new modification date (unless timestamps were
+          // copied), it will be looked at once more during next run.
+          index.remove(docId);
+          if (newUri != null) {
+            index.put(DocumentsContract.getDocumentId(newUri), newName,
+                mimeType, lastModified, DocumentIndex.DECISION_COMPRESSED);
+          }
         } catch (FileNotFoundException e) {
           Log.e(TAG, "FileNotFoundException: " + originalUri);
+          return false;
         }
-    } else if (!name.equals(newName)) {
+    } else if (name.equals(newName)) {
+      index.put(docId, name, mimeType, lastModified, job.estimateSkipped ?
+          DocumentIndex.DECISION_ESTIMATED : DocumentIndex.DECISION_NONE);
+    } else if ((moved = moveFile(candidate)) == MOVE_DONE) {
+      index.remove(docId);
+      index.put(getSiblingDocId(docId, newName), newName, mimeType,
+          lastModified, renamedDecision);
+    } else if (moved == MOVE_CONFLICT) {
+      // The new name was taken since the file was listed: don't let the
+      // provider pick another one, that may match again during next run.
+      stats.increment("rename_conflicts");
+      index.put(docId, name, mimeType, lastModified,
+          DocumentIndex.DECISION_NONE);
+    } else {
       Logger.getInstance(context).addLine("Renaming \"" + name + "\"…");
+      // The rename may be sent later, in a batch with other files of the same
+      // directory: don't keep the file content in memory until then.
+      job.exif = null;
+      job.deferred = true;
+      renamer.submit(getSiblingDocId(docId, ""), originalUri, newName,
+          (success, newUri) -> {
+            if (success) {
+              index.remove(docId);
+              if (newUri != null) {
+                index.put(DocumentsContract.getDocumentId(newUri), newName,
+                    mimeType, lastModified, renamedDecision);
+              }
+            }
+            candidate.done(success);
+          });
+      return true;
+    }
+    job.success = true;
+    return true;
+  }
+
+  /*
+   * With full path access, there is no need to go through the
+   * DocumentsProvider: renames the file on the filesystem directly. Returns
+   * MOVE_FAILED if it must be renamed through the provider instead, and
+   * MOVE_CONFLICT if it must be left as it is.
+   */
+  private int moveFile(Candidate candidate) {
+    Path path = candidate.path;
+    if (path == null && rootPath != null) {
+      path = FileUtil.docIdToPath(candidate.docId, rootDocId, rootPath);
+    }
+    if (path == null) {
+      return MOVE_FAILED;
+    }
+    Logger.getInstance(context).addLine("Renaming \"" + candidate.name + "\"…");
+    try {
+      Path newPath = FileUtil.rename(path, candidate.newName);
+      synchronized (movedPaths) {
+        movedPaths.add(path.toString());
+        movedPaths.add(newPath.toString());
+      }
+      stats.increment("files_moved");
+      return MOVE_DONE;
+    } catch (FileAlreadyExistsException e) {
+      Log.i(TAG, "Not renaming " + path + ": " + e.getFile() + " exists");
+      return MOVE_CONFLICT;
+    } catch (IOException e) {
+      Log.e(TAG, "Cannot move " + path + ": " + e.toString());
+    }
+    stats.increment("files_move_failed");
+    return MOVE_FAILED;
+  }
+
+  /*
+   * Finishes or rolls back recompressions that previous runs left halfway,
+   * using the last step recorded in the journal:
+   * - begun: the original is untouched, delete the temporary file.
+   * - backed up: give the original its name back, delete the temporary file.
+   * - replaced: the new file is in place, only delete the backup.
+   * What actually exists is checked first, as the run may have been stopped
+   * between a step and its record.
+   */
+  private void repairUnfinished(Uri rootUri) {
+    for (Journal.Sequence sequence : journal.getUnfinished()) {
+      Uri originalUri = DocumentsContract.buildDocumentUriUsingTree(rootUri,
+          sequence.docId);
+      Uri tempUri = DocumentsContract.buildDocumentUriUsingTree(rootUri,
+          getSiblingDocId(sequence.docId, sequence.name + FILE_TEMP_SUFFIX));
+      Uri backupUri = DocumentsContract.buildDocumentUriUsingTree(rootUri,
+          getSiblingDocId(sequence.docId, sequence.name + FILE_BACKUP_SUFFIX));
       try {
-        DocumentsContract.renameDocument(contentResolver, originalUri, newName);
-      } catch (FileNotFoundException e) {
-        Log.e(TAG, "FileNotFoundException: " + originalUri);
+        boolean tempExists = exists(tempUri);
+        boolean backupExists = exists(backupUri);
+        if (backupExists && tempExists && !exists(originalUri)) {
+          renamer.rename(backupUri, sequence.name);
+          backupExists = false;
+        }
+        if (tempExists) {
+          DocumentsContract.deleteDocument(contentResolver, tempUri);
+        }
+        if (backupExists && !config.getJpegCompressionKeepBackup() &&
+            !Journal.STEP_BEGUN.equals(sequence.step)) {
+          DocumentsContract.deleteDocument(contentResolver, backupUri);
+        }
+        Logger.getInstance(context).addLine("Repaired interrupted " +
+            "compression of \"" + sequence.name + "\"");
+      } catch (Exception e) {
+        Log.e(TAG, "Cannot repair " + sequence.docId + ": " + e.toString());
+        Logger.getInstance(context).addLine("Could not repair interrupted " +
+            "compression of \"" + sequence.name + "\": " + e.toString());
       }
+      // Don't try forever: leftover files are reported in the log
+      journal.end(sequence);
     }
   }
 
-  private byte[] compressJpegFile(Uri originalUri, String name) {
-    InputStream inputStream = null;
-    ByteArrayOutputStream tempStream = null;
+  private boolean exists(Uri uri) {
+    final String[] projection = {DocumentsContract.Document.COLUMN_DOCUMENT_ID};
+    try (Cursor c = contentResolver.query(uri, projection, null, null, null)) {
+      return c != null && c.moveToFirst();
+    } catch (Exception e) {
+      // Providers throw when the document doesn't exist
+      return false;
+    }
+  }
+
+  /*
+   * Returns the document ID of a file named newName, in the same directory as
+   * docId (e.g. "primary:DCIM/a.jpg" → "primary:DCIM/b.jpg").
+   */
+  static String getSiblingDocId(String docId, String newName) {
+    int i = Math.max(docId.lastIndexOf('/'), docId.lastIndexOf(':'));
+    return docId.substring(0, i + 1) + newName;
+  }
+
+  /*
+   * Decodes the image straight from the original file, and compresses it
+   * again with its EXIF metadata into a pooled buffer. At most the bitmap and
+   * this buffer are in memory at once. Returns null (and releases the buffer)
+   * if the result isn't small enough. The input stream is closed.
+   */
+  private BufferPool.Buffer compressJpeg(Uri originalUri,
+      InputStream inputStream, CountingInputStream counter,
+      long originalFileSize, int[] size, ExifInterface originalExif,
+      double expectedRatio, String name) {
+    BufferPool.Buffer buffer = null;
+    Bitmap bitmap = null;
 
     try {
-      inputStream = contentResolver.openInputStream(originalUri);
-      tempStream = new ByteArrayOutputStream();
-      byte[] buf = new byte[8192];
-      int length;
-      while ((length = inputStream.read(buf)) != -1) {
-        tempStream.write(buf, 0, length);
-      }
-      byte[] originalBytes = tempStream.toByteArray();
-      int originalFileSize = originalBytes.length;
-
-      Bitmap bitmap = BitmapFactory.decodeByteArray(
-          originalBytes, 0, originalBytes.length);
+      bitmap = decoder.decode(inputStream, size);
+      if (originalFileSize <= 0) {
+        // Not a regular file: the size is only known once it is all read
+        byte[] rest = new byte[8192];
+        while (inputStream.read(rest, 0, rest.length) != -1) {}
+        originalFileSize = counter.getCount();
+      }
       inputStream.close();
+      stats.increment("source_files");
+      stats.add("source_bytes_read", counter.getCount());
+      if (bitmap == null) {
+        throw new IOException("Cannot decode " + originalUri);
+      }
+      if (size != null && bitmap.getWidth() != size[0]) {
+        // The image was scaled down
+        originalExif.setTagValue(ExifInterface.TAG_PIXEL_X_DIMENSION,
+            bitmap.getWidth());
+        originalExif.setTagValue(ExifInterface.TAG_PIXEL_Y_DIMENSION,
+            bitmap.getHeight());
+      }
 
-      tempStream = new ByteArrayOutputStream();
+      buffer = buffers.acquire();
+      OutputStream exifStream = originalExif.getExifWriterStream(buffer);
       bitmap.compress(Bitmap.CompressFormat.JPEG,
-          config.getJpegCompressionQuality(), tempStream);
-      tempStream.close();
+          config.getJpegCompressionQuality(), exifStream);
+      exifStream.flush();
+      recordMemoryUsage(bitmap, buffer);
+      decoder.release(bitmap);
+      bitmap = null;
 
-      inputStream = contentResolver.openInputStream(originalUri);
-      ExifInterface originalExif = new ExifInterface();
-      originalExif.readExif(inputStream);
-      inputStream.close();
-      inputStream = new ByteArrayInputStream(tempStream.toByteArray());
-      tempStream = new ByteArrayOutputStream();
-      originalExif.writeExif(inputStream, tempStream);
-      inputStream.close();
-      tempStream.close();
-
-      byte[] compressedBytes = tempStream.toByteArray();
-      float ratio = (float) compressedBytes.length / (float) originalFileSize;
+      float ratio = (float) buffer.size() / (float) originalFileSize;
+      if (expectedRatio >= 0) {
+        // How far the estimation was, to tell whether skips can be trusted
+        stats.increment("estimate_checked");
+        stats.add("estimate_error_percent",
+            Math.round(100 * Math.abs(expectedRatio - ratio)));
+      }
 
       if (ratio < config.getJpegCompressionOverwriteRatio()) {
         Logger.getInstance(context).addLine(
             "Compressing \"" + name + "\": " + Math.round(100 * ratio) + "% " +
             "→ keep");
-        return compressedBytes;
+        BufferPool.Buffer result = buffer;
+        buffer = null;
+        return result;
       } else {
         Logger.getInstance(context).addLine(
             "Compressing \"" + name + "\": " + Math.round(100 * ratio) + "% " +
@@ -343,7 +942,6 @@ public class Worker extends androidx.work.Worker {
 
     } catch (FileNotFoundException e) {
       Log.e(TAG, "Cannot open " + originalUri);
-      e.printStackTrace();
     } catch (IOException e) {
       Log.e(TAG, "IOException: " + e.toString());
       e.printStackTrace();
@@ -353,10 +951,11 @@ public class Worker extends androidx.work.Worker {
           inputStream.close();
         } catch (IOException e) {}
       }
-      if (tempStream != null) {
-        try {
-          tempStream.close();
-        } catch (IOException e) {}
+      if (bitmap != null) {
+        decoder.release(bitmap);
+      }
+      if (buffer != null) {
+        buffers.release(buffer);
       }
     }
 
@@ -364,11 +963,150 @@ public class Worker extends androidx.work.Worker {
         "Error compressing \"" + name + "\"");
     return null;
   }
+
+  /*
+   * Keeps track of the memory needed by compression, to be reported at the
+   * end of the run.
+   */
+  private void recordMemoryUsage(Bitmap bitmap, BufferPool.Buffer buffer) {
+    Runtime runtime = Runtime.getRuntime();
+    stats.max("memory_bitmap_max_bytes", bitmap.getByteCount());
+    stats.max("memory_buffer_max_bytes", buffer.capacity());
+    stats.max("memory_heap_max_bytes",
+        runtime.totalMemory() - runtime.freeMemory());
+  }
+
+  /*
+   * Counts the bytes read from a stream.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private long count = 0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  /*
+   * State of one file going through the processing pipeline.
+   */
+  private static class Job {
+    final Uri rootUri;
+    final Candidate candidate;
+    final Uri originalUri;
+    ExifInterface exif;
+    // The original file, opened and rewound by the read step
+    InputStream input;
+    CountingInputStream inputCounter;
+    // Width and height of the original image, or null if unknown
+    int[] size;
+    // In bytes, or negative if unknown
+    long originalSize;
+    QualityEstimator.Header header;
+    // Set if recompression was not even tried
+    boolean estimateSkipped = false;
+    BufferPool.Buffer compressed;
+    Uri compressedUri;
+    boolean success = false;
+    // Set if the candidate will be done later, by the renamer
+    boolean deferred = false;
+
+    Job(Uri rootUri, Candidate candidate) {
+      this.rootUri = rootUri;
+      this.candidate = candidate;
+      this.originalUri = DocumentsContract.buildDocumentUriUsingTree(
+          rootUri, candidate.docId);
+      this.originalSize = candidate.size;
+    }
+  }
 }
 
 class FileUtil {
   private static final String PRIMARY_VOLUME_NAME = "primary";
 
+  /*
+   * Renames a file atomically in its directory, and returns its new path.
+   * Throws FileAlreadyExistsException if a file with the new name exists.
+   * This is checked just before renaming: a file created in between would
+   * still be replaced, like with a plain rename(2).
+   */
+  static Path rename(Path path, String newName) throws IOException {
+    Path newPath = path.resolveSibling(newName);
+    if (Files.exists(newPath)) {
+      throw new FileAlreadyExistsException(newPath.toString());
+    }
+    return Files.move(path, newPath, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /*
+   * Returns the path of a document under the root directory, given the root
+   * document ID (e.g. "primary:DCIM") and its path.
+   */
+  static Path docIdToPath(String docId, String rootDocId, Path rootPath) {
+    if (!docId.startsWith(rootDocId)) {
+      return null;
+    }
+    String relative = docId.substring(rootDocId.length());
+    if (relative.startsWith("/")) {
+      relative = relative.substring(1);
+    } else if (!relative.isEmpty() && !rootDocId.endsWith(":")) {
+      return null; // e.g. "primary:DCIM2/a.jpg" is not under "primary:DCIM"
+    }
+    return rootPath.resolve(relative);
+  }
+
+  /*
+   * Like hasAccessToFullPaths(), without writing anything: the worker runs
+   * often, and creating a file in the media directory would notify MediaStore
+   * observers (and trigger the worker again).
+   */
+  static boolean canUseFullPaths(String rootUri, Context context) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R &&
+        !Environment.isExternalStorageManager()) {
+      return false;
+    }
+    try {
+      String fullPath = rootUriToFullPath(rootUri, context);
+      if (fullPath == null || !fullPath.startsWith("/")) {
+        return false;
+      }
+      Path path = Paths.get(fullPath);
+      return Files.isDirectory(path) && Files.isReadable(path) &&
+          Files.isWritable(path);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
   static boolean hasAccessToFullPaths(String testUri, Context context) {
     try {
       String fullPath = rootUriToFullPath(testUri, context);
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSystemScannerTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path root;
+
+  @Before
+  public void createTree() throws IOException {
+    // DCIM/
+    //   20221202_200100.jpg
+    //   Camera/
+    //     20221203_100000.mp4
+    //     notes.txt
+    root = folder.newFolder("DCIM").toPath();
+    Path camera = Files.createDirectory(root.resolve("Camera"));
+    Files.write(root.resolve("20221202_200100.jpg"), new byte[] {1});
+    Files.setLastModifiedTime(root.resolve("20221202_200100.jpg"),
+        FileTime.fromMillis(1670000000000L));
+    Files.write(camera.resolve("20221203_100000.mp4"), new byte[] {2});
+    Files.write(camera.resolve("notes.txt"), new byte[] {3});
+  }
+
+  @Test
+  public void walkWholeTree() throws IOException {
+    RecordingSink sink = new RecordingSink();
+    new FileSystemScanner(root, "primary:DCIM").walk(sink);
+
+    List<String> events = sink.events;
+    assertEquals(7, events.size());
+    assertEquals("enter primary:DCIM", events.get(0));
+    assertEquals("leave primary:DCIM", events.get(6));
+    // Children of a directory are visited between its enter and leave
+    int camera = events.indexOf("enter primary:DCIM/Camera");
+    int cameraEnd = events.indexOf("leave primary:DCIM/Camera");
+    assertTrue(camera > 0 && cameraEnd == camera + 3);
+    // MIME types of other extensions depend on the platform
+    assertTrue(sink.docIds.contains(
+        "primary:DCIM/Camera/20221203_100000.mp4"));
+    assertTrue(sink.docIds.contains("primary:DCIM/Camera/notes.txt"));
+    assertTrue(events.contains(
+        "file primary:DCIM/20221202_200100.jpg image/jpeg"));
+    assertEquals(Long.valueOf(1670000000000L),
+        sink.lastModified.get(sink.docIds.indexOf(
+            "primary:DCIM/20221202_200100.jpg")));
+  }
+
+  @Test
+  public void walkVolumeRoot() throws IOException {
+    RecordingSink sink = new RecordingSink();
+    new FileSystemScanner(root, "primary:").walk(sink);
+
+    assertEquals("enter primary:", sink.events.get(0));
+    assertTrue(sink.docIds.contains("primary:20221202_200100.jpg"));
+    assertTrue(sink.docIds.contains("primary:Camera/notes.txt"));
+  }
+
+  @Test
+  public void walkTargetDirectories() throws IOException {
+    RecordingSink sink = new RecordingSink();
+    new FileSystemScanner(root, "primary:DCIM").walk(
+        new HashSet<>(Arrays.asList("primary:DCIM", "primary:Pictures",
+            "primary:DCIM/Missing")), sink);
+
+    // Only direct children: files of subdirectories are not visited, and
+    // directories outside of the tree are ignored
+    assertEquals(Collections.singletonList("primary:DCIM/20221202_200100.jpg"),
+        sink.docIds);
+    assertEquals("enter primary:DCIM", sink.events.get(0));
+    assertEquals(1, sink.failures);
+  }
+
+  @Test
+  public void walkSubdirectory() throws IOException {
+    RecordingSink sink = new RecordingSink();
+    new FileSystemScanner(root, "primary:DCIM").walk(
+        Collections.singleton("primary:DCIM/Camera"), sink);
+
+    assertEquals(Arrays.asList(
+        "enter primary:DCIM/Camera",
+        "leave primary:DCIM/Camera"),
+        Arrays.asList(sink.events.get(0), sink.events.get(3)));
+    assertEquals(2, sink.docIds.size());
+  }
+
+  @Test
+  public void interrupt() throws IOException {
+    RecordingSink sink = new RecordingSink() {
+      @Override
+      public void visitFile(String docId, String name, String mimeType,
+          long lastModified, long size, Path path) throws InterruptedException {
+        throw new InterruptedException();
+      }
+    };
+    try {
+      new FileSystemScanner(root, "primary:DCIM").walk(sink);
+      fail();
+    } catch (InterruptedIOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void docIds() {
+    FileSystemScanner scanner = new FileSystemScanner(root, "primary:DCIM");
+    Path file = root.resolve("Camera").resolve("a.jpg");
+    assertEquals("primary:DCIM/Camera/a.jpg", scanner.toDocId(file));
+    assertEquals(file, scanner.toPath("primary:DCIM/Camera/a.jpg"));
+    assertEquals("primary:DCIM", scanner.toDocId(root));
+    assertEquals(root, scanner.toPath("primary:DCIM"));
+    assertNull(scanner.toPath("primary:DCIM2/a.jpg"));
+  }
+
+  @Test
+  public void guessMimeType() {
+    assertEquals("image/jpeg", FileSystemScanner.guessMimeType("a.jpg"));
+    assertEquals("application/octet-stream",
+        FileSystemScanner.guessMimeType("a.unknown"));
+  }
+
+  private static class RecordingSink implements FileSystemScanner.Sink {
+    final List<String> events = new ArrayList<>();
+    final List<String> docIds = new ArrayList<>();
+    final List<Long> lastModified = new ArrayList<>();
+    final List<String> directories = new ArrayList<>();
+    int failures = 0;
+
+    @Override
+    public void enterDirectory(String docId) {
+      events.add("enter " + docId);
+      directories.add(docId);
+    }
+
+    @Override
+    public void visitFile(String docId, String name, String mimeType,
+        long lastModified, long size, Path path) throws InterruptedException {
+      assertEquals(path.getFileName().toString(), name);
+      assertEquals(1, size);
+      events.add("file " + docId + " " + mimeType);
+      docIds.add(docId);
+      this.lastModified.add(lastModified);
+    }
+
+    @Override
+    public void leaveDirectory(boolean failed) {
+      events.add("leave " + directories.remove(directories.size() - 1));
+    }
+
+    @Override
+    public void visitFailed(Path path, IOException e) {
+      failures++;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileUtilTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void rename() throws IOException {
+    Path path = folder.newFile("20221202_200100.jpg").toPath();
+    Files.write(path, new byte[] {1, 2, 3});
+
+    Path newPath = FileUtil.rename(path, "IMG_20221202_200100.jpg");
+
+    assertEquals(path.resolveSibling("IMG_20221202_200100.jpg"), newPath);
+    assertFalse(Files.exists(path));
+    assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(newPath));
+  }
+
+  @Test
+  public void renameNeverReplaces() throws IOException {
+    Path path = folder.newFile("20221202_200100.jpg").toPath();
+    Files.write(path, new byte[] {1});
+    Path existing = folder.newFile("IMG_20221202_200100.jpg").toPath();
+    Files.write(existing, new byte[] {2});
+
+    try {
+      FileUtil.rename(path, "IMG_20221202_200100.jpg");
+      fail();
+    } catch (FileAlreadyExistsException e) {
+      assertEquals(existing.toString(), e.getFile());
+    }
+    assertArrayEquals(new byte[] {1}, Files.readAllBytes(path));
+    assertArrayEquals(new byte[] {2}, Files.readAllBytes(existing));
+  }
+
+  @Test
+  public void renameMissingFile() {
+    Path path = folder.getRoot().toPath().resolve("missing.jpg");
+    try {
+      FileUtil.rename(path, "IMG_missing.jpg");
+      fail();
+    } catch (IOException e) {
+      assertFalse(e instanceof FileAlreadyExistsException);
+    }
+    assertFalse(Files.exists(path.resolveSibling("IMG_missing.jpg")));
+  }
+
+  @Test
+  public void docIdToPath() {
+    Path root = Paths.get("/storage/emulated/0/DCIM");
+    assertEquals(root.resolve("a.jpg"),
+        FileUtil.docIdToPath("primary:DCIM/a.jpg", "primary:DCIM", root));
+    assertEquals(root.resolve("Camera/a.jpg"),
+        FileUtil.docIdToPath("primary:DCIM/Camera/a.jpg", "primary:DCIM",
+          root));
+    assertEquals(root,
+        FileUtil.docIdToPath("primary:DCIM", "primary:DCIM", root));
+    // Not under the root directory
+    assertNull(
+        FileUtil.docIdToPath("primary:DCIM2/a.jpg", "primary:DCIM", root));
+    assertNull(
+        FileUtil.docIdToPath("primary:Pictures/a.jpg", "primary:DCIM", root));
+    assertNull(
+        FileUtil.docIdToPath("1A2B-3C4D:DCIM/a.jpg", "primary:DCIM", root));
+  }
+
+  @Test
+  public void docIdToPathFromVolumeRoot() {
+    Path root = Paths.get("/storage/emulated/0");
+    assertEquals(root.resolve("DCIM/a.jpg"),
+        FileUtil.docIdToPath("primary:DCIM/a.jpg", "primary:", root));
+    assertEquals(root, FileUtil.docIdToPath("primary:", "primary:", root));
+    assertTrue(FileUtil.docIdToPath("primary:a.jpg", "primary:", root)
+        .startsWith(root));
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class QualityEstimatorTest {
+
+  @Test
+  public void readHeader() throws IOException {
+    byte[] jpeg = createJpeg(4000, 3000, 2, 0x22, 1000);
+    InputStream in = new BufferedInputStream(new ByteArrayInputStream(jpeg));
+    QualityEstimator.Header header = QualityEstimator.readHeader(in, 65536);
+
+    assertEquals(4000, header.width);
+    assertEquals(3000, header.height);
+    assertEquals(75, header.quality);
+    assertFalse(header.fullChroma);
+    // SOI, APP1, DQT, SOF0 and the SOS marker
+    assertEquals(2 + 1004 + 69 + 2 + 17 + 2, header.dataOffset);
+    // The stream was rewound
+    assertEquals(0xFF, in.read());
+  }
+
+  @Test
+  public void readHeaderFullChroma() throws IOException {
+    byte[] jpeg = createJpeg(100, 100, 1, 0x11, 0);
+    QualityEstimator.Header header = QualityEstimator.readHeader(
+        new BufferedInputStream(new ByteArrayInputStream(jpeg)), 65536);
+    assertEquals(50, header.quality);
+    assertTrue(header.fullChroma);
+  }
+
+  @Test
+  public void estimateQuality() {
+    assertEquals(50, QualityEstimator.estimateQuality(scaledTable(100)));
+    assertEquals(75, QualityEstimator.estimateQuality(scaledTable(50)));
+    assertEquals(90, QualityEstimator.estimateQuality(scaledTable(20)));
+    assertEquals(25, QualityEstimator.estimateQuality(scaledTable(200)));
+  }
+
+  @Test
+  public void estimateRatio() {
+    QualityEstimator.Header header = new QualityEstimator.Header();
+    header.width = 1000;
+    header.height = 1000;
+    header.quality = 70;
+    header.dataOffset = 0;
+
+    // Same quality and size: the image data stays the same
+    assertEquals(1.0, QualityEstimator.estimateRatio(header, 500000, 70, null),
+        0.001);
+    // Half the pixels
+    assertEquals(0.5, QualityEstimator.estimateRatio(header, 500000, 70,
+          new int[] {1000, 500}), 0.001);
+    // Metadata is copied as is
+    header.dataOffset = 100000;
+    assertEquals(0.6, QualityEstimator.estimateRatio(header, 500000, 70,
+          new int[] {1000, 500}), 0.001);
+    // A lower quality gives fewer bytes per pixel
+    assertTrue(QualityEstimator.estimateRatio(header, 500000, 50, null) < 1);
+    assertTrue(QualityEstimator.estimateRatio(header, 500000, 90, null) > 1);
+  }
+
+  @Test
+  public void estimateRatioUnknown() {
+    QualityEstimator.Header header = new QualityEstimator.Header();
+    header.width = 1000;
+    header.height = 1000;
+    header.quality = 70;
+    header.dataOffset = 1000;
+    assertEquals(-1, QualityEstimator.estimateRatio(header,
+          Candidate.UNKNOWN_SIZE, 70, null), 0);
+    assertEquals(-1, QualityEstimator.estimateRatio(header, 1000, 70, null), 0);
+    assertEquals(-1, QualityEstimator.estimateRatio(null, 500000, 70, null), 0);
+    header.quality = 0;
+    assertEquals(-1,
+        QualityEstimator.estimateRatio(header, 500000, 70, null), 0);
+  }
+
+  private static int[] scaledTable(int percent) {
+    int[] standard = {
+        16, 11, 10, 16, 24, 40, 51, 61,
+        12, 12, 14, 19, 26, 58, 60, 55,
+        14, 13, 16, 24, 40, 57, 69, 56,
+        14, 17, 22, 29, 51, 87, 80, 62,
+        18, 22, 37, 56, 68, 109, 103, 77,
+        24, 35, 55, 64, 81, 104, 113, 92,
+        49, 64, 78, 87, 103, 121, 120, 101,
+        72, 92, 95, 98, 112, 100, 103, 99};
+    int[] table = new int[64];
+    for (int i = 0; i < 64; i++) {
+      table[i] = Math.max(1, (standard[i] * percent + 50) / 100);
+    }
+    return table;
+  }
+
+  /*
+   * Returns the header of a 3-component baseline JPEG, with an APP1 segment
+   * of appSize bytes, followed by a few bytes of image data.
+   */
+  private static byte[] createJpeg(int width, int height, int scaleDivisor,
+      int lumaSampling, int appSize) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(0xFF);
+    out.write(0xD8);
+    if (appSize > 0) {
+      out.write(0xFF);
+      out.write(0xE1);
+      writeShort(out, appSize + 2);
+      out.write(new byte[appSize], 0, appSize);
+    }
+    out.write(0xFF);
+    out.write(0xDB);
+    writeShort(out, 67);
+    out.write(0); // 8 bits, table 0
+    for (int value : scaledTable(100 / scaleDivisor)) {
+      out.write(value);
+    }
+    out.write(0xFF);
+    out.write(0xC0);
+    writeShort(out, 17);
+    out.write(8);
+    writeShort(out, height);
+    writeShort(out, width);
+    out.write(3);
+    for (int i = 0; i < 3; i++) {
+      out.write(i + 1);
+      out.write(i == 0 ? lumaSampling : 0x11);
+      out.write(i == 0 ? 0 : 1);
+    }
+    out.write(0xFF);
+    out.write(0xDA);
+    writeShort(out, 12);
+    out.write(new byte[64], 0, 64);
+    return out.toByteArray();
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value >> 8);
+    out.write(value & 0xFF);
+  }
+}
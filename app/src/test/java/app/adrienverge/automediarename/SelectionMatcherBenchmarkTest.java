@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Compares SelectionMatcher with the loop it replaced, which ran every rule's
+ * regex on every name until one matched. Timings are printed, not asserted:
+ * they depend too much on the machine.
+ */
+public class SelectionMatcherBenchmarkTest {
+  private static final int NAMES = 20000;
+  private static final int ROUNDS = 10;
+
+  private final List<Config.Selection> selections = createSelections();
+  private final String[] names = createNames(new Random(42));
+
+  @Test
+  public void sameResultsAsLoop() {
+    SelectionMatcher matcher = new SelectionMatcher(selections);
+    for (String name : names) {
+      assertEquals(name, matchWithLoop(name), matcher.match(name, null));
+    }
+  }
+
+  @Test
+  public void compareWithLoop() {
+    SelectionMatcher matcher = new SelectionMatcher(selections);
+    long loopNanos = Long.MAX_VALUE;
+    long matcherNanos = Long.MAX_VALUE;
+    int loopMatches = 0;
+    int matcherMatches = 0;
+    // Best of several rounds, the first ones warm up the JIT
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      loopMatches = 0;
+      for (String name : names) {
+        if (matchWithLoop(name) >= 0) {
+          loopMatches++;
+        }
+      }
+      loopNanos = Math.min(loopNanos, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      matcherMatches = 0;
+      for (String name : names) {
+        if (matcher.match(name, null) >= 0) {
+          matcherMatches++;
+        }
+      }
+      matcherNanos = Math.min(matcherNanos, System.nanoTime() - start);
+    }
+    assertEquals(loopMatches, matcherMatches);
+    System.out.println("Matching " + NAMES + " names against " +
+        selections.size() + " rules: loop " + loopNanos / NAMES +
+        " ns/name, SelectionMatcher " + matcherNanos / NAMES + " ns/name");
+  }
+
+  /*
+   * What the worker did before SelectionMatcher.
+   */
+  private int matchWithLoop(String name) {
+    for (int i = 0; i < selections.size(); i++) {
+      if (selections.get(i).pattern.matcher(name).matches()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static List<Config.Selection> createSelections() {
+    List<Config.Selection> selections = new ArrayList<>();
+    // The default rules
+    selections.add(new Config.Selection(
+        "^20\\d\\d[01]\\d[0123]\\d_\\d{6}.*\\.jpg", "IMG_"));
+    selections.add(new Config.Selection(
+        "^20\\d\\d[01]\\d[0123]\\d_\\d{6}.*\\.mp4", "VID_"));
+    // A few more, like users add for other cameras and apps
+    selections.add(new Config.Selection("^PXL_\\d{8}_\\d{9}.*\\.jpg", "IMG_"));
+    selections.add(new Config.Selection("^PXL_\\d{8}_\\d{9}.*\\.mp4", "VID_"));
+    selections.add(new Config.Selection("^DSC\\d{5}\\.JPG", "IMG_"));
+    selections.add(new Config.Selection("^Screenshot_.*\\.png", "SCR_"));
+    selections.add(new Config.Selection("^signal-.*\\.jpg", "IMG_"));
+    selections.add(new Config.Selection("^\\d{13}\\.jpg", "IMG_"));
+    return selections;
+  }
+
+  /*
+   * A directory listing as found on phones: mostly files that were already
+   * renamed, or that no rule matches.
+   */
+  private static String[] createNames(Random random) {
+    String[] names = new String[NAMES];
+    for (int i = 0; i < NAMES; i++) {
+      String date = String.format("20%02d%02d%02d_%06d", random.nextInt(30),
+          1 + random.nextInt(12), 1 + random.nextInt(28),
+          random.nextInt(1000000));
+      switch (random.nextInt(10)) {
+        case 0:
+          names[i] = date + ".jpg";
+          break;
+        case 1:
+          names[i] = date + ".mp4";
+          break;
+        case 2:
+        case 3:
+        case 4:
+          names[i] = "IMG_" + date + ".jpg";
+          break;
+        case 5:
+          names[i] = "VID_" + date + ".mp4";
+          break;
+        case 6:
+          names[i] = "." + date + ".jpg.thumbnail";
+          break;
+        case 7:
+          names[i] = "PXL_" + date.replace("_", "_" +
+              random.nextInt(10)) + "00.jpg";
+          break;
+        case 8:
+          names[i] = date + ".json";
+          break;
+        default:
+          names[i] = "Screenshot_" + date + ".png";
+          break;
+      }
+    }
+    return names;
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Adrien Vergé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package app.adrienverge.automediarename;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SelectionMatcherTest {
+
+  @Test
+  public void literalPrefix() {
+    assertEquals("IMG_", SelectionMatcher.getLiteralPrefix("^IMG_\\d+\\.jpg$"));
+    assertEquals("20", SelectionMatcher.getLiteralPrefix("^20\\d\\d[01]\\d"));
+    assertEquals("a.b", SelectionMatcher.getLiteralPrefix("a\\.b.*"));
+    // A quantified character is not mandatory
+    assertEquals("PX", SelectionMatcher.getLiteralPrefix("PXL?_.*"));
+    assertEquals("", SelectionMatcher.getLiteralPrefix("a*b"));
+    assertEquals("", SelectionMatcher.getLiteralPrefix(".*\\.jpg"));
+    assertEquals("foo", SelectionMatcher.getLiteralPrefix("foo\\x41"));
+    assertEquals("", SelectionMatcher.getLiteralPrefix("\\u0041bc"));
+  }
+
+  @Test
+  public void literalSuffix() {
+    assertEquals(".jpg", SelectionMatcher.getLiteralSuffix("^IMG_\\d+\\.jpg$"));
+    assertEquals(".mp4", SelectionMatcher.getLiteralSuffix("^IMG_\\d+\\.mp4"));
+    assertEquals("jpg", SelectionMatcher.getLiteralSuffix("^IMG_.jpg"));
+    assertEquals("", SelectionMatcher.getLiteralSuffix("IMG_\\d"));
+    assertEquals("", SelectionMatcher.getLiteralSuffix("IMG_.*"));
+    // An escaped "$" is a literal one
+    assertEquals("a$", SelectionMatcher.getLiteralSuffix("^.*a\\$"));
+    assertEquals("\\", SelectionMatcher.getLiteralSuffix("^.*\\\\"));
+  }
+
+  @Test
+  public void literalSuffixWithLongEscapes() {
+    assertEquals("", SelectionMatcher.getLiteralSuffix("foo\\x41"));
+    assertEquals("", SelectionMatcher.getLiteralSuffix("foo\\u0041"));
+    assertEquals("", SelectionMatcher.getLiteralSuffix("x\\cA"));
+    assertEquals("", SelectionMatcher.getLiteralSuffix("x\\012"));
+    assertEquals("", SelectionMatcher.getLiteralSuffix("x\\pL.jpg"));
+    assertEquals("", SelectionMatcher.getLiteralSuffix("(?<n>a)\\k<n>"));
+    // An escaped backslash doesn't start an escape
+    assertEquals("foo\\x41", SelectionMatcher.getLiteralSuffix("foo\\\\x41"));
+  }
+
+  @Test
+  public void match() {
+    SelectionMatcher matcher = createMatcher(
+        "^20\\d\\d[01]\\d[0123]\\d_\\d{6}.*\\.jpg", null,
+        "^20\\d\\d[01]\\d[0123]\\d_\\d{6}.*\\.mp4", null,
+        "^PXL_.*", "image/*",
+        "^DSC.*", null);
+    assertEquals(0, matcher.match("20220314_123456.jpg", "image/jpeg"));
+    assertEquals(1, matcher.match("20220314_123456.mp4", "video/mp4"));
+    assertEquals(-1, matcher.match("20220314_123456.png", "image/png"));
+    assertEquals(-1, matcher.match("IMG_20220314_123456.jpg", "image/jpeg"));
+    assertEquals(2, matcher.match("PXL_20220314.jpg", "image/jpeg"));
+    assertEquals(-1, matcher.match("PXL_20220314.mp4", "video/mp4"));
+    assertEquals(-1, matcher.match("PXL_20220314.jpg", null));
+    // Rules without a known extension are tried for any name
+    assertEquals(3, matcher.match("DSC0001.jpg", "image/jpeg"));
+    assertEquals(3, matcher.match("DSC0001", null));
+    assertEquals(-1, matcher.match(".nomedia", null));
+  }
+
+  @Test
+  public void matchKeepsRuleOrder() {
+    SelectionMatcher matcher = createMatcher(
+        "^a.*", null,
+        ".*\\.jpg", null);
+    assertEquals(0, matcher.match("a.jpg", null));
+    assertEquals(1, matcher.match("b.jpg", null));
+  }
+
+  @Test
+  public void matchWithLongEscapes() {
+    SelectionMatcher matcher = createMatcher(
+        "foo\\x41", null,
+        "bar\\u0041", null,
+        "x\\cA", null);
+    assertEquals(0, matcher.match("fooA", null));
+    assertEquals(1, matcher.match("barA", null));
+    assertEquals(2, matcher.match("x\u0001", null));
+  }
+
+  @Test
+  public void matchWithFlags() {
+    // Literals are not extracted from case-insensitive patterns
+    List<Config.Selection> selections = new ArrayList<>();
+    selections.add(new Config.Selection("(?i)^img_.*\\.JPG", "x_"));
+    SelectionMatcher matcher = new SelectionMatcher(selections);
+    assertEquals(0, matcher.match("IMG_1.jpg", null));
+  }
+
+  /*
+   * Takes pairs of pattern and MIME type.
+   */
+  private static SelectionMatcher createMatcher(String... rules) {
+    List<Config.Selection> selections = new ArrayList<>();
+    for (int i = 0; i < rules.length; i += 2) {
+      selections.add(new Config.Selection(rules[i], "x_", rules[i + 1]));
+    }
+    return new SelectionMatcher(selections);
+  }
+}